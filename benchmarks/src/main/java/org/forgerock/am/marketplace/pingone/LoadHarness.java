@@ -0,0 +1,423 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.pingone;
+
+import static org.forgerock.json.JsonValue.json;
+import static org.forgerock.json.JsonValue.object;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.security.auth.callback.Callback;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.auth.node.api.Action;
+import org.forgerock.openam.auth.node.api.ExternalRequestContext;
+import org.forgerock.openam.auth.node.api.Node;
+import org.forgerock.openam.auth.node.api.NodeProcessException;
+import org.forgerock.openam.auth.node.api.TreeContext;
+import org.forgerock.openam.auth.service.marketplace.TNTPPingOneConfig;
+import org.forgerock.openam.core.realms.Realm;
+import org.forgerock.openam.utils.JsonValueBuilder;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.iplanet.am.util.SystemProperties;
+import com.sun.identity.authentication.callbacks.HiddenValueCallback;
+
+/**
+ * End to end load test of the Initialize, Evaluation and Result nodes against a {@link PingOneStubServer}.
+ * <p>
+ * Each driver thread runs journeys in a loop: every node is processed through {@link Node#process(TreeContext)},
+ * first without callbacks and then with the callbacks it returned, filled in as the client would. The harness
+ * reports the journey throughput, the latency percentiles of each node and the outcome counts.
+ * </p>
+ * <p>
+ * Options are given as {@code name=value} arguments, see {@link Options}.
+ * </p>
+ */
+public final class LoadHarness {
+
+	private static final String WORKER = "stub";
+	private static final String ENVIRONMENT_ID = "abfba8f6-49eb-49f5-a5d9-80ad5c98f9f6";
+	private static final String USER_ID = "loadUserId";
+	private static final String USERNAME = "loadUsername";
+	private static final String SIGNALS = "Q2hyb21lOjEyMC4wLjAuMDt3aW5kb3dzOzEwLjAuMDtkZXNrdG9wOzE5MjB4MTA4MA";
+	private static final String USER_AGENT = "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 "
+			+ "(KHTML, like Gecko) Chrome/120.0.0.0 Safari/537.36";
+
+	private final Options options;
+	private final Realm realm;
+	private final PingOneProtectInitializeNode initializeNode;
+	private final PingOneProtectEvaluationNode evaluationNode;
+	private final PingOneProtectResultNode resultNode;
+	private volatile Stats stats = new Stats();
+
+	private LoadHarness(Options options) {
+		this.options = options;
+		this.realm = mock(Realm.class);
+		when(realm.asPath()).thenReturn("/");
+		this.initializeNode = new PingOneProtectInitializeNode(new InitializeConfig(), null);
+		this.evaluationNode = new PingOneProtectEvaluationNode(new EvaluationConfig(options), realm, null, null);
+		this.resultNode = new PingOneProtectResultNode(new ResultConfig(options), realm);
+	}
+
+	/**
+	 * Run the load test.
+	 *
+	 * @param args The {@code name=value} options
+	 * @throws Exception When the stub server cannot be started
+	 */
+	public static void main(String[] args) throws Exception {
+		Options options = Options.parse(args);
+		try (PingOneStubServer stub = new PingOneStubServer(options.profile())) {
+			SystemProperties.initializeProperties(PingOneProtectHttpClient.PROPERTY_PREFIX
+					+ PingOneProtectHttpClient.BASE_URL, stub.baseUrl());
+			SystemProperties.initializeProperties(PingOneProtectHttpClient.PROPERTY_PREFIX
+					+ PingOneProtectHttpClient.MAX_CONNECTIONS, String.valueOf(options.threads * 2));
+			PingOneProtectWorkerRegistry.getInstance().put(WORKER, worker());
+			PingOneProtectTokenManager.getInstance().setTokenSource((realm, worker) ->
+					fetchToken(stub.tokenEndpoint(worker.environmentId())));
+			PingOneProtectHttpClient.start();
+			try {
+				System.out.println("Stub " + stub.baseUrl() + ", " + options.profile());
+				LoadHarness harness = new LoadHarness(options);
+				harness.run(options.warmupSeconds);
+				harness.stats = new Stats();
+				long elapsed = harness.run(options.durationSeconds);
+				harness.report(elapsed);
+				System.out.println("Stub requests: " + stub.stats());
+			} finally {
+				PingOneProtectCompletionDispatcher.getInstance().shutdown();
+				PingOneProtectTokenManager.getInstance().shutdown();
+				PingOneProtectHttpClient.shutdown();
+			}
+		}
+	}
+
+	/**
+	 * Run journeys on all the driver threads for the given time.
+	 *
+	 * @return The elapsed time in nanoseconds
+	 */
+	private long run(int seconds) throws InterruptedException {
+		if (seconds <= 0) {
+			return 0;
+		}
+		ExecutorService drivers = Executors.newFixedThreadPool(options.threads);
+		CountDownLatch done = new CountDownLatch(options.threads);
+		long start = System.nanoTime();
+		long end = start + TimeUnit.SECONDS.toNanos(seconds);
+		for (int i = 0; i < options.threads; i++) {
+			drivers.execute(() -> {
+				try {
+					while (System.nanoTime() < end) {
+						journey();
+					}
+				} finally {
+					done.countDown();
+				}
+			});
+		}
+		done.await();
+		drivers.shutdown();
+		return System.nanoTime() - start;
+	}
+
+	private void journey() {
+		Stats current = stats;
+		long start = System.nanoTime();
+		try {
+			JsonValue sharedState = json(object());
+			JsonValue transientState = json(object());
+			sharedState.put(USER_ID, "user-" + Thread.currentThread().getId());
+			sharedState.put(USERNAME, "user-" + Thread.currentThread().getId() + "@example.com");
+
+			String outcome = process(initializeNode, sharedState, transientState, current.initialize, null);
+			current.count("initialize." + outcome);
+			outcome = process(evaluationNode, sharedState, transientState, current.evaluation, SIGNALS);
+			current.count("evaluation." + outcome);
+			if (!"error".equalsIgnoreCase(outcome)) {
+				outcome = process(resultNode, sharedState, transientState, current.result, null);
+				current.count("result." + outcome);
+			}
+			current.journey.record(System.nanoTime() - start);
+		} catch (Exception e) {
+			current.count("exception." + e.getClass().getSimpleName());
+		}
+	}
+
+	/**
+	 * Process a node, and again with its callbacks filled in if it returns callbacks.
+	 *
+	 * @return The outcome
+	 */
+	private String process(Node node, JsonValue sharedState, JsonValue transientState, LatencyHistogram histogram,
+			String signals) throws NodeProcessException {
+		long start = System.nanoTime();
+		Action action = node.process(context(sharedState, transientState, List.of()));
+		if (action.sendingCallbacks()) {
+			for (Callback callback : action.callbacks) {
+				if (callback instanceof HiddenValueCallback) {
+					HiddenValueCallback hidden = (HiddenValueCallback) callback;
+					// The client echoes the id of the error callback when there is no error.
+					hidden.setValue("clientError".equals(hidden.getId()) ? "clientError" : signals);
+				}
+			}
+			action = node.process(context(sharedState, transientState, action.callbacks));
+		}
+		histogram.record(System.nanoTime() - start);
+		return action.outcome;
+	}
+
+	private static TreeContext context(JsonValue sharedState, JsonValue transientState,
+			List<? extends Callback> callbacks) {
+		ListMultimap<String, String> headers = ArrayListMultimap.create();
+		headers.put("User-Agent", USER_AGENT);
+		ExternalRequestContext request = new ExternalRequestContext.Builder()
+				.clientIp("192.0.2.10")
+				.headers(headers)
+				.build();
+		return new TreeContext(sharedState, transientState, request, callbacks, Optional.empty());
+	}
+
+	private void report(long elapsedNanos) {
+		Stats current = stats;
+		double seconds = elapsedNanos / 1e9;
+		System.out.printf("Threads %d, %.1fs, %d journeys, %.1f journeys/s%n", options.threads, seconds,
+				current.journey.count(), current.journey.count() / seconds);
+		print("journey", current.journey);
+		print("initialize", current.initialize);
+		print("evaluation", current.evaluation);
+		print("result", current.result);
+		new TreeMap<>(current.outcomes).forEach((outcome, count) -> System.out.printf("  %-40s %d%n", outcome,
+				count.sum()));
+		PingOneProtectTokenManager tokens = PingOneProtectTokenManager.getInstance();
+		System.out.printf("Tokens: hits=%d misses=%d refreshes=%d%n", tokens.hits(), tokens.misses(),
+				tokens.refreshes());
+	}
+
+	private static void print(String name, LatencyHistogram histogram) {
+		System.out.printf("  %-12s p50=%dus p90=%dus p99=%dus p99.9=%dus%n", name, histogram.percentileMicros(50),
+				histogram.percentileMicros(90), histogram.percentileMicros(99), histogram.percentileMicros(99.9));
+	}
+
+	private static TNTPPingOneConfig worker() {
+		TNTPPingOneConfig worker = mock(TNTPPingOneConfig.class);
+		when(worker.id()).thenReturn(WORKER);
+		when(worker.environmentId()).thenReturn(ENVIRONMENT_ID);
+		return worker;
+	}
+
+	private static String fetchToken(String tokenEndpoint) throws Exception {
+		HttpURLConnection connection = (HttpURLConnection) new URL(tokenEndpoint).openConnection();
+		try {
+			connection.setRequestMethod("POST");
+			connection.setDoOutput(true);
+			connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+			try (OutputStream out = connection.getOutputStream()) {
+				out.write("grant_type=client_credentials".getBytes(StandardCharsets.UTF_8));
+			}
+			if (connection.getResponseCode() != 200) {
+				throw new IllegalStateException("Token endpoint responded " + connection.getResponseCode());
+			}
+			try (InputStream in = connection.getInputStream()) {
+				return JsonValueBuilder.getObjectMapper().readTree(in).get("access_token").asText();
+			}
+		} finally {
+			connection.disconnect();
+		}
+	}
+
+	/**
+	 * Latencies and outcome counts of a run.
+	 */
+	private static final class Stats {
+		private final LatencyHistogram journey = new LatencyHistogram();
+		private final LatencyHistogram initialize = new LatencyHistogram();
+		private final LatencyHistogram evaluation = new LatencyHistogram();
+		private final LatencyHistogram result = new LatencyHistogram();
+		private final ConcurrentMap<String, LongAdder> outcomes = new ConcurrentHashMap<>();
+
+		private void count(String outcome) {
+			outcomes.computeIfAbsent(outcome, key -> new LongAdder()).increment();
+		}
+	}
+
+	/**
+	 * Load test options.
+	 * <ul>
+	 * <li>{@code threads} - number of driver threads, default 16</li>
+	 * <li>{@code duration} - measured seconds, default 60</li>
+	 * <li>{@code warmup} - seconds run before the measurement, default 10</li>
+	 * <li>{@code latency} - median latency of PingOne in milliseconds, default 50</li>
+	 * <li>{@code sigma} - spread of the log-normal latency, default 0.5</li>
+	 * <li>{@code errorRate} - share of server errors, default 0</li>
+	 * <li>{@code throttleRate} - share of {@code 429} responses, default 0</li>
+	 * <li>{@code retryAfter} - {@code Retry-After} of the {@code 429} responses in seconds, default 1</li>
+	 * <li>{@code maxEvaluationLatency} - Evaluation node latency budget in milliseconds, default 0</li>
+	 * <li>{@code hedgeRequests} - whether the Evaluation node hedges requests, default false</li>
+	 * <li>{@code asyncUpdate} - whether the Result node queues the update, default false</li>
+	 * </ul>
+	 */
+	static final class Options {
+		private int threads;
+		private int durationSeconds;
+		private int warmupSeconds;
+		private double latencyMillis;
+		private double sigma;
+		private double errorRate;
+		private double throttleRate;
+		private int retryAfterSeconds;
+		private int maxEvaluationLatency;
+		private boolean hedgeRequests;
+		private boolean asyncUpdate;
+
+		static Options parse(String[] args) {
+			Map<String, String> values = new HashMap<>();
+			for (String arg : args) {
+				int separator = arg.indexOf('=');
+				if (separator <= 0) {
+					throw new IllegalArgumentException("Expected name=value, got " + arg);
+				}
+				values.put(arg.substring(0, separator), arg.substring(separator + 1));
+			}
+			Options options = new Options();
+			options.threads = Integer.parseInt(values.getOrDefault("threads", "16"));
+			options.durationSeconds = Integer.parseInt(values.getOrDefault("duration", "60"));
+			options.warmupSeconds = Integer.parseInt(values.getOrDefault("warmup", "10"));
+			options.latencyMillis = Double.parseDouble(values.getOrDefault("latency", "50"));
+			options.sigma = Double.parseDouble(values.getOrDefault("sigma", "0.5"));
+			options.errorRate = Double.parseDouble(values.getOrDefault("errorRate", "0"));
+			options.throttleRate = Double.parseDouble(values.getOrDefault("throttleRate", "0"));
+			options.retryAfterSeconds = Integer.parseInt(values.getOrDefault("retryAfter", "1"));
+			options.maxEvaluationLatency = Integer.parseInt(values.getOrDefault("maxEvaluationLatency", "0"));
+			options.hedgeRequests = Boolean.parseBoolean(values.getOrDefault("hedgeRequests", "false"));
+			options.asyncUpdate = Boolean.parseBoolean(values.getOrDefault("asyncUpdate", "false"));
+			return options;
+		}
+
+		PingOneStubServer.Profile profile() {
+			return new PingOneStubServer.Profile()
+					.latency(latencyMillis, sigma)
+					.errorRate(errorRate)
+					.throttleRate(throttleRate, retryAfterSeconds);
+		}
+	}
+
+	/**
+	 * Initialize node configuration returning the metadata callback.
+	 */
+	private static final class InitializeConfig implements PingOneProtectInitializeNode.Config {
+
+		@Override
+		public String tntpPingOneConfigName() {
+			return WORKER;
+		}
+
+		@Override
+		public Optional<String> customHost() {
+			return Optional.empty();
+		}
+
+		@Override
+		public boolean useScript() {
+			return false;
+		}
+	}
+
+	/**
+	 * Evaluation node configuration reading the user from the shared state, so that no identity store is needed.
+	 */
+	private static final class EvaluationConfig implements PingOneProtectEvaluationNode.Config {
+		private final Options options;
+
+		private EvaluationConfig(Options options) {
+			this.options = options;
+		}
+
+		@Override
+		public String tntpPingOneConfigName() {
+			return WORKER;
+		}
+
+		@Override
+		public Optional<String> targetResourceID() {
+			return Optional.of("target-app");
+		}
+
+		@Override
+		public Optional<String> riskPolicySetID() {
+			return Optional.empty();
+		}
+
+		@Override
+		public Optional<String> userId() {
+			return Optional.of(USER_ID);
+		}
+
+		@Override
+		public Optional<String> username() {
+			return Optional.of(USERNAME);
+		}
+
+		@Override
+		public boolean useScript() {
+			return false;
+		}
+
+		@Override
+		public int maxEvaluationLatency() {
+			return options.maxEvaluationLatency;
+		}
+
+		@Override
+		public boolean hedgeRequests() {
+			return options.hedgeRequests;
+		}
+
+		@Override
+		public boolean compactState() {
+			return true;
+		}
+	}
+
+	/**
+	 * Result node configuration.
+	 */
+	private static final class ResultConfig implements PingOneProtectResultNode.Config {
+		private final Options options;
+
+		private ResultConfig(Options options) {
+			this.options = options;
+		}
+
+		@Override
+		public boolean asyncUpdate() {
+			return options.asyncUpdate;
+		}
+	}
+}
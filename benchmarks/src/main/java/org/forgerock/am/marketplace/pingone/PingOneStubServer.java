@@ -0,0 +1,250 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.pingone;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local stand-in of the PingOne endpoints used by the PingOne Protect nodes, for load tests.
+ * <p>
+ * Serves the worker token endpoint, {@code POST /v1/environments/{envId}/riskEvaluations} and
+ * {@code PUT /v1/environments/{envId}/riskEvaluations/{id}/event}. The latency of the risk evaluation endpoints
+ * follows a log-normal distribution, and a share of their requests can be answered with a server error or a
+ * {@code 429 Too Many Requests} with a {@code Retry-After} header.
+ * </p>
+ */
+final class PingOneStubServer implements AutoCloseable {
+
+	private static final Pattern TOKEN = Pattern.compile("/([^/]+)/as/token");
+	private static final Pattern EVALUATIONS = Pattern.compile("/v1/environments/([^/]+)/riskEvaluations");
+	private static final Pattern EVENT = Pattern.compile("/v1/environments/([^/]+)/riskEvaluations/([^/]+)/event");
+	private static final String TEMPLATE_ID = "5d4ac7b3-2b84-4f5b-9d3c-3b62a2ac5a8e";
+
+	private final Profile profile;
+	private final String evaluation;
+	private final HttpServer server;
+	private final ExecutorService executor;
+	private final LongAdder tokens = new LongAdder();
+	private final LongAdder evaluations = new LongAdder();
+	private final LongAdder events = new LongAdder();
+	private final LongAdder errors = new LongAdder();
+	private final LongAdder throttled = new LongAdder();
+
+	/**
+	 * Start a stub server on an ephemeral port of the loopback interface.
+	 *
+	 * @param profile The latency and fault profile
+	 * @throws IOException When the server cannot be started
+	 */
+	PingOneStubServer(Profile profile) throws IOException {
+		this.profile = profile;
+		try (InputStream in = PingOneStubServer.class.getClassLoader().getResourceAsStream(ResponseBenchmark.RESPONSE)) {
+			this.evaluation = new String(ByteStreams.toByteArray(in), StandardCharsets.UTF_8);
+		}
+		this.executor = Executors.newCachedThreadPool(
+				new ThreadFactoryBuilder().setNameFormat("PingOneStub-%d").setDaemon(true).build());
+		this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+		server.createContext("/", this::handle);
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	/**
+	 * Get the base URL of the stub, to be used as the PingOne API base URL.
+	 *
+	 * @return The base URL, without a trailing slash
+	 */
+	String baseUrl() {
+		return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort();
+	}
+
+	/**
+	 * Get the token endpoint of an environment.
+	 *
+	 * @param environmentId The environment id
+	 * @return The token endpoint URL
+	 */
+	String tokenEndpoint(String environmentId) {
+		return baseUrl() + "/" + environmentId + "/as/token";
+	}
+
+	/**
+	 * Get a summary of the requests served.
+	 *
+	 * @return The request counts
+	 */
+	String stats() {
+		return String.format("tokens=%d evaluations=%d events=%d errors=%d throttled=%d", tokens.sum(),
+				evaluations.sum(), events.sum(), errors.sum(), throttled.sum());
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		try (InputStream in = exchange.getRequestBody()) {
+			ByteStreams.exhaust(in);
+		}
+		String method = exchange.getRequestMethod();
+		String path = exchange.getRequestURI().getPath();
+		try {
+			if ("POST".equals(method) && TOKEN.matcher(path).matches()) {
+				tokens.increment();
+				respond(exchange, 200, token());
+				return;
+			}
+			Matcher event = EVENT.matcher(path);
+			boolean isEvent = "PUT".equals(method) && event.matches();
+			boolean isEvaluation = !isEvent && "POST".equals(method) && EVALUATIONS.matcher(path).matches();
+			if (!isEvent && !isEvaluation) {
+				respond(exchange, 404, "{\"code\":\"NOT_FOUND\"}");
+				return;
+			}
+			String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+			if (authorization == null || !authorization.startsWith("Bearer ")) {
+				respond(exchange, 401, "{\"code\":\"UNAUTHORIZED\"}");
+				return;
+			}
+			TimeUnit.MICROSECONDS.sleep(profile.latencyMicros());
+			double fault = ThreadLocalRandom.current().nextDouble();
+			if (fault < profile.throttleRate) {
+				throttled.increment();
+				exchange.getResponseHeaders().set("Retry-After", String.valueOf(profile.retryAfterSeconds));
+				respond(exchange, 429, "{\"code\":\"REQUEST_LIMITED\"}");
+			} else if (fault < profile.throttleRate + profile.errorRate) {
+				errors.increment();
+				respond(exchange, 500, "{\"code\":\"UNEXPECTED_ERROR\"}");
+			} else if (isEvent) {
+				events.increment();
+				respond(exchange, 200, "{\"id\":\"" + event.group(2) + "\",\"completionStatus\":\"SUCCESS\"}");
+			} else {
+				evaluations.increment();
+				respond(exchange, 201, evaluation.replace(TEMPLATE_ID, UUID.randomUUID().toString()));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			exchange.close();
+		}
+	}
+
+	private String token() {
+		Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+		long exp = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis()) + profile.tokenLifetimeSeconds;
+		String jwt = encoder.encodeToString("{\"alg\":\"none\"}".getBytes(StandardCharsets.UTF_8)) + "."
+				+ encoder.encodeToString(("{\"exp\":" + exp + ",\"jti\":\"" + UUID.randomUUID() + "\"}")
+						.getBytes(StandardCharsets.UTF_8)) + ".stub";
+		return "{\"access_token\":\"" + jwt + "\",\"token_type\":\"Bearer\",\"expires_in\":"
+				+ profile.tokenLifetimeSeconds + "}";
+	}
+
+	private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+
+	/**
+	 * The latency and fault profile of the risk evaluation endpoints.
+	 */
+	static final class Profile {
+		private double medianMillis = 50;
+		private double sigma = 0.5;
+		private double errorRate = 0;
+		private double throttleRate = 0;
+		private int retryAfterSeconds = 1;
+		private int tokenLifetimeSeconds = 3600;
+
+		/**
+		 * Set the log-normal latency distribution.
+		 *
+		 * @param medianMillis The median latency in milliseconds
+		 * @param sigma        The standard deviation of the latency logarithm, 0 for a constant latency
+		 * @return This profile
+		 */
+		Profile latency(double medianMillis, double sigma) {
+			this.medianMillis = medianMillis;
+			this.sigma = sigma;
+			return this;
+		}
+
+		/**
+		 * Set the share of requests answered with {@code 500 Internal Server Error}.
+		 *
+		 * @param errorRate The share, between 0 and 1
+		 * @return This profile
+		 */
+		Profile errorRate(double errorRate) {
+			this.errorRate = errorRate;
+			return this;
+		}
+
+		/**
+		 * Set the share of requests answered with {@code 429 Too Many Requests}.
+		 *
+		 * @param throttleRate      The share, between 0 and 1
+		 * @param retryAfterSeconds The {@code Retry-After} value
+		 * @return This profile
+		 */
+		Profile throttleRate(double throttleRate, int retryAfterSeconds) {
+			this.throttleRate = throttleRate;
+			this.retryAfterSeconds = retryAfterSeconds;
+			return this;
+		}
+
+		/**
+		 * Set the lifetime of the access tokens issued.
+		 *
+		 * @param tokenLifetimeSeconds The lifetime in seconds
+		 * @return This profile
+		 */
+		Profile tokenLifetime(int tokenLifetimeSeconds) {
+			this.tokenLifetimeSeconds = tokenLifetimeSeconds;
+			return this;
+		}
+
+		private long latencyMicros() {
+			if (medianMillis <= 0) {
+				return 0;
+			}
+			double gaussian = sigma > 0 ? ThreadLocalRandom.current().nextGaussian() * sigma : 0;
+			return (long) (medianMillis * 1000 * Math.exp(gaussian));
+		}
+
+		@Override
+		public String toString() {
+			return String.format("latency median=%sms sigma=%s, errorRate=%s, throttleRate=%s (Retry-After %ss)",
+					medianMillis, sigma, errorRate, throttleRate, retryAfterSeconds);
+		}
+	}
+}
@@ -0,0 +1,99 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.pingone;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.forgerock.openam.utils.JsonValueBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Cost of building the risk evaluation request body, for SDK signals of various sizes.
+ * <p>
+ * {@link #streamed()} is the path used by the Evaluation node, {@link #tree()} is the former path through a string
+ * and a JSON tree, kept as a baseline.
+ * </p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class RequestBodyBenchmark {
+
+	static final String USER_AGENT = "Mozilla/5.0 (Macintosh; Intel Mac OS X 10_15_7) AppleWebKit/537.36 "
+			+ "(KHTML, like Gecko) Chrome/120.0.0.0 Safari/537.36";
+	static final String IP = "203.0.113.10";
+	static final String USER_ID = "id=demo,ou=user,o=alpha,ou=services,ou=am-config";
+	static final String USERNAME = "demo";
+
+	@Param({ "1024", "8192", "65536" })
+	private int signalSize;
+
+	private String signals;
+	private EventEncoder encoder;
+	private ObjectMapper mapper;
+
+	@Setup
+	public void setUp() {
+		signals = signals(signalSize);
+		encoder = EventEncoder.forConfig("target-app", FlowType.AUTHENTICATION.name(),
+				DeviceSharingType.SHARED.name(), null, UserType.EXTERNAL.name());
+		mapper = JsonValueBuilder.getObjectMapper();
+	}
+
+	@Benchmark
+	public byte[] streamed() throws IOException {
+		return encoder.encode(IP, signals, USER_AGENT, USER_ID, USERNAME);
+	}
+
+	@Benchmark
+	public byte[] tree() throws Exception {
+		Event event = new Event();
+		event.setTargetResource(new Event.TargetResource("target-app"));
+		event.setIp(IP);
+		event.setFlow(new Event.Flow(FlowType.AUTHENTICATION.name()));
+		event.setUser(new Event.User(USER_ID, USERNAME, UserType.EXTERNAL.name()));
+		event.setSdk(new Event.Sdk(new Event.Signals(signals)));
+		event.setSharingType(DeviceSharingType.SHARED.name());
+		event.setBrowser(new Event.Browser(USER_AGENT));
+		Event.Root root = new Event.Root();
+		root.setEvent(event);
+		return mapper.writeValueAsBytes(
+				JsonValueBuilder.toJsonValue(mapper.writeValueAsString(root)).getObject());
+	}
+
+	/**
+	 * Random signal data of the given size, in the base64url alphabet like the SDK output.
+	 */
+	static String signals(int size) {
+		String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
+		Random random = new Random(42);
+		StringBuilder signals = new StringBuilder(size);
+		for (int i = 0; i < size; i++) {
+			signals.append(alphabet.charAt(random.nextInt(alphabet.length())));
+		}
+		return signals.toString();
+	}
+}
@@ -0,0 +1,115 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.pingone;
+
+import static org.forgerock.json.JsonValue.json;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.forgerock.openam.auth.node.api.Action;
+import org.forgerock.openam.utils.JsonValueBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.io.ByteStreams;
+
+/**
+ * Cost of reading the risk evaluation response and selecting the node outcome.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ResponseBenchmark {
+
+	static final String RESPONSE = "org/forgerock/am/marketplace/pingone/riskEvaluation.json";
+
+	private byte[] response;
+	private EvaluationPlan plan;
+	private RiskResult result;
+	private Set<String> projection;
+
+	@Setup
+	public void setUp() throws IOException {
+		try (InputStream in = ResponseBenchmark.class.getClassLoader().getResourceAsStream(RESPONSE)) {
+			response = ByteStreams.toByteArray(in);
+		}
+		plan = EvaluationPlan.forConfig(new BenchmarkConfig());
+		result = RiskResult.parse(new ByteArrayInputStream(response));
+		projection = Set.of("result.score", "result.level", "details.ipRisk.level");
+	}
+
+	@Benchmark
+	public RiskResult tree() throws IOException {
+		return RiskResult.of(json(JsonValueBuilder.getObjectMapper().readValue(response, Object.class)));
+	}
+
+	@Benchmark
+	public RiskResult streamed() throws IOException {
+		return RiskResult.parse(new ByteArrayInputStream(response));
+	}
+
+	@Benchmark
+	public RiskResult projected() throws IOException {
+		return RiskResult.parse(new ByteArrayInputStream(response), projection);
+	}
+
+	@Benchmark
+	public Action decide() {
+		return plan.decide(result);
+	}
+
+	@Benchmark
+	public Action streamedAndDecide() throws IOException {
+		return plan.decide(RiskResult.parse(new ByteArrayInputStream(response)));
+	}
+
+	/**
+	 * Evaluation node configuration with a score threshold, two score bands and a recommended action.
+	 */
+	static final class BenchmarkConfig implements PingOneProtectEvaluationNode.Config {
+
+		@Override
+		public Optional<String> targetResourceID() {
+			return Optional.of("target-app");
+		}
+
+		@Override
+		public Optional<String> riskPolicySetID() {
+			return Optional.empty();
+		}
+
+		@Override
+		public List<String> recommendedActions() {
+			return List.of("BOT_MITIGATION");
+		}
+
+		@Override
+		public Map<String, String> scoreBands() {
+			return Map.of("500", "block", "200", "stepUp");
+		}
+	}
+}
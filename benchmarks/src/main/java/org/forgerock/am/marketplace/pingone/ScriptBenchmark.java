@@ -0,0 +1,81 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.pingone;
+
+import java.util.concurrent.TimeUnit;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.auth.node.api.NodeProcessException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sun.identity.authentication.callbacks.ScriptTextOutputCallback;
+
+/**
+ * Cost of building the client script callbacks.
+ * <p>
+ * {@link #memoized()} renders the same configuration, as a node does between configuration changes,
+ * {@link #render()} renders a new configuration on every call.
+ * </p>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ScriptBenchmark {
+
+	private JsonValue initValues;
+	private long counter;
+
+	@Setup
+	public void setUp() throws NodeProcessException {
+		ScriptHelper.loadTemplates();
+		initValues = initValues("d1a2b3c4-0000-4000-8000-000000000000");
+	}
+
+	@Benchmark
+	public ScriptTextOutputCallback memoized() throws NodeProcessException {
+		return ScriptHelper.getScriptedCallback(ScriptHelper.sdkJsPathTemplate, initValues);
+	}
+
+	@Benchmark
+	public ScriptTextOutputCallback render() throws NodeProcessException {
+		return ScriptHelper.getScriptedCallback(ScriptHelper.sdkJsPathTemplate, initValues("env-" + counter++));
+	}
+
+	@Benchmark
+	public ScriptTextOutputCallback signals() throws NodeProcessException {
+		return ScriptHelper.getSigCallback(ScriptHelper.sdkJsPathSigTemplate);
+	}
+
+	private static JsonValue initValues(String envId) {
+		JsonValue initValues = JsonValue.json(JsonValue.object());
+		initValues.put("envId", envId);
+		initValues.put("consoleLogEnabled", false);
+		initValues.put("customHost", "");
+		initValues.put("lazyMetadata", false);
+		initValues.put("behavioralDataCollection", true);
+		initValues.put("deviceKeyRsyncIntervals", 14);
+		initValues.put("enableTrust", false);
+		initValues.put("disableTags", false);
+		initValues.put("disableHub", false);
+		initValues.put("sdkUrl", "https://apps.pingone.com/signals/web-sdk/5.3.7/signals-sdk.js");
+		return initValues;
+	}
+}
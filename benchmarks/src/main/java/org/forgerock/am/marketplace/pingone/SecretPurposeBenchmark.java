@@ -0,0 +1,77 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.pingone;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.lang.reflect.Type;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.forgerock.openam.core.realms.Realm;
+import org.forgerock.secrets.Purpose;
+import org.forgerock.secrets.keys.VerificationKey;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.vavr.control.Either;
+
+/**
+ * Cost of the {@link SecretPurposeTypeAdapter} conversions.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class SecretPurposeBenchmark {
+
+	private final SecretPurposeTypeAdapter adapter = new SecretPurposeTypeAdapter();
+	private Type type;
+	private Optional<Annotation> annotation;
+	private Set<String> values;
+	private Purpose<?> purpose;
+
+	@Setup
+	public void setUp() throws NoSuchMethodException {
+		Method method = AnnotatedConfig.class.getMethod("secret");
+		type = method.getGenericReturnType();
+		annotation = Optional.of(method.getAnnotation(SecretPurpose.class));
+		values = Set.of("worker");
+		purpose = adapter.convertFromStrings(type, Optional.empty(), values, annotation).get();
+	}
+
+	@Benchmark
+	public Either<IllegalStateException, Purpose<?>> fromStrings() {
+		return adapter.convertFromStrings(type, Optional.<Realm>empty(), values, annotation);
+	}
+
+	@Benchmark
+	public Set<String> toStrings() {
+		return adapter.convertToStrings(type, purpose, annotation);
+	}
+
+	/**
+	 * A configuration attribute with a secret purpose.
+	 */
+	interface AnnotatedConfig {
+		@SecretPurpose("am.services.pingone.protect.%s.secret")
+		Purpose<VerificationKey> secret();
+	}
+}
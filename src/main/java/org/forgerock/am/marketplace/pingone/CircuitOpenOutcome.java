@@ -0,0 +1,47 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+package org.forgerock.am.marketplace.pingone;
+
+import java.util.Locale;
+
+
+/**
+ * The Evaluation node outcome taken while PingOne Protect is unavailable.
+ */
+public enum CircuitOpenOutcome {
+
+    /**
+     * Error outcome.
+     */
+    ERROR,
+    /**
+     * High Risk outcome.
+     */
+    HIGH,
+    /**
+     * Medium Risk outcome.
+     */
+    MEDIUM,
+    /**
+     * Low Risk outcome.
+     */
+    LOW,
+    /**
+     * Exceed score threshold outcome.
+     */
+    EXCEED;
+
+    /**
+     * The outcome id, which is the lower case name.
+     *
+     * @return The outcome id
+     */
+    String getOutcomeId() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+}
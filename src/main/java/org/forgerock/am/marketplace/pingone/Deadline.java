@@ -0,0 +1,77 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+package org.forgerock.am.marketplace.pingone;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The point in time by which a risk evaluation must complete, shared by all the steps of the evaluation.
+ */
+final class Deadline {
+
+    private static final Deadline NONE = new Deadline(Long.MAX_VALUE);
+
+    private final long expiresAt;
+
+    private Deadline(long expiresAt) {
+        this.expiresAt = expiresAt;
+    }
+
+    /**
+     * A deadline that never expires.
+     *
+     * @return The deadline
+     */
+    static Deadline none() {
+        return NONE;
+    }
+
+    /**
+     * A deadline from now.
+     *
+     * @param millis The budget in milliseconds, 0 or less for no deadline
+     * @return The deadline
+     */
+    static Deadline after(long millis) {
+        return millis <= 0 ? NONE : new Deadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    /**
+     * Whether there is a deadline.
+     *
+     * @return True if the deadline can expire
+     */
+    boolean isBounded() {
+        return this != NONE;
+    }
+
+    /**
+     * The time left.
+     *
+     * @return The remaining time in milliseconds, {@link Long#MAX_VALUE} when there is no deadline
+     */
+    long remainingMillis() {
+        if (!isBounded()) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(TimeUnit.NANOSECONDS.toMillis(expiresAt - System.nanoTime()), 0);
+    }
+
+    /**
+     * Fail when the deadline has passed.
+     *
+     * @param step The step that is about to start, for the error message
+     * @throws TimeoutException When the deadline has passed
+     */
+    void check(String step) throws TimeoutException {
+        if (isBounded() && expiresAt - System.nanoTime() <= 0) {
+            throw new TimeoutException("Risk evaluation latency budget exceeded before " + step);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+package org.forgerock.am.marketplace.pingone;
+
+
+/**
+ * The class of a failure of a PingOne Protect node, stored in the transient state when the node takes its error
+ * outcome.
+ */
+public enum ErrorCode {
+
+    /**
+     * PingOne did not respond within the time allowed.
+     */
+    TIMEOUT,
+    /**
+     * PingOne rejected the request with a 4xx status.
+     */
+    HTTP_4XX,
+    /**
+     * PingOne failed with a 5xx status.
+     */
+    HTTP_5XX,
+    /**
+     * PingOne could not be reached.
+     */
+    CONNECTION_ERROR,
+    /**
+     * The PingOne response could not be read.
+     */
+    PARSE_ERROR,
+    /**
+     * The client reported an error collecting the signals.
+     */
+    CLIENT_ERROR,
+    /**
+     * Any other failure.
+     */
+    INTERNAL_ERROR
+}
@@ -0,0 +1,176 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.pingone;
+
+import static org.forgerock.am.marketplace.pingone.PingOneProtectEvaluationNode.OutcomeProvider.EXCEED_OUTCOME_ID;
+import static org.forgerock.am.marketplace.pingone.PingOneProtectEvaluationNode.OutcomeProvider.HIGH_OUTCOME_ID;
+import static org.forgerock.am.marketplace.pingone.PingOneProtectEvaluationNode.OutcomeProvider.LOW_OUTCOME_ID;
+import static org.forgerock.am.marketplace.pingone.PingOneProtectEvaluationNode.OutcomeProvider.MEDIUM_OUTCOME_ID;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+
+import org.forgerock.openam.auth.node.api.Action;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * The decisions of an Evaluation node configuration, compiled once.
+ * <p>
+ * The score threshold and score bands become a descending array of primitive bounds, the recommended actions and
+ * risk levels become hash lookups, and the actions for each outcome are built in advance. The plan is immutable and
+ * shared by all the nodes with the same configuration.
+ * </p>
+ */
+final class EvaluationPlan {
+
+	private static final Logger logger = LoggerFactory.getLogger(EvaluationPlan.class);
+	private static final String loggerPrefix = "[EvaluationPlan]" + PingOneProtectPlugin.logAppender;
+
+	private static final Cache<List<Object>, EvaluationPlan> plans = CacheBuilder.newBuilder()
+			.maximumSize(1000)
+			.build();
+
+	private final double[] bounds;
+	private final Action[] bandActions;
+	private final Map<String, Action> recommendedActions;
+	private final Map<String, Action> levelActions;
+	private final EventEncoder encoder;
+	private final Set<String> projection;
+
+	private EvaluationPlan(PingOneProtectEvaluationNode.Config config) {
+		// Score bands, the highest bound first. The score threshold is the band of the exceed outcome.
+		TreeMap<Double, String> bands = new TreeMap<>();
+		for (Map.Entry<String, String> band : config.scoreBands().entrySet()) {
+			try {
+				bands.put(Double.parseDouble(band.getKey().trim()), band.getValue().trim());
+			} catch (NumberFormatException e) {
+				logger.warn("{}Ignoring score band with invalid bound {}", loggerPrefix, band.getKey());
+			}
+		}
+		double threshold = Double.parseDouble(config.scoreThreshold());
+		if (threshold > 0) {
+			bands.put(threshold, EXCEED_OUTCOME_ID);
+		}
+		this.bounds = new double[bands.size()];
+		this.bandActions = new Action[bands.size()];
+		int i = 0;
+		for (Map.Entry<Double, String> band : bands.descendingMap().entrySet()) {
+			bounds[i] = band.getKey();
+			bandActions[i] = Action.goTo(band.getValue()).build();
+			i++;
+		}
+
+		this.recommendedActions = new HashMap<>();
+		for (String action : config.recommendedActions()) {
+			recommendedActions.put(action, Action.goTo(action).build());
+		}
+
+		this.levelActions = new HashMap<>();
+		levelActions.put("HIGH", Action.goTo(HIGH_OUTCOME_ID).build());
+		levelActions.put("MEDIUM", Action.goTo(MEDIUM_OUTCOME_ID).build());
+		levelActions.put("LOW", Action.goTo(LOW_OUTCOME_ID).build());
+
+		this.encoder = EventEncoder.forConfig(config.targetResourceID().orElse(null), config.flowType().name(),
+				config.deviceSharingType().name(), config.riskPolicySetID().orElse(null), config.userType().name());
+
+		Set<String> fields = new LinkedHashSet<>();
+		for (String field : config.storeEvaluateResultFields()) {
+			if (!field.trim().isEmpty()) {
+				fields.add(field.trim());
+			}
+		}
+		this.projection = Collections.unmodifiableSet(fields);
+	}
+
+	/**
+	 * Get the plan of a node configuration.
+	 *
+	 * @param config The Evaluation node configuration
+	 * @return The plan
+	 */
+	static EvaluationPlan forConfig(PingOneProtectEvaluationNode.Config config) {
+		List<Object> key = Arrays.asList(config.scoreThreshold(), new ArrayList<>(config.recommendedActions()),
+				new HashMap<>(config.scoreBands()), config.targetResourceID().orElse(null), config.flowType(),
+				config.deviceSharingType(), config.riskPolicySetID().orElse(null), config.userType(),
+				new ArrayList<>(config.storeEvaluateResultFields()));
+		try {
+			return plans.get(key, () -> new EvaluationPlan(config));
+		} catch (ExecutionException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	/**
+	 * Decide the outcome of a risk result. A score above a band bound takes the highest precedence, then the
+	 * recommended action, then the risk level.
+	 *
+	 * @param result The risk result
+	 * @return The action
+	 */
+	Action decide(RiskResult result) {
+		if (result.hasScore()) {
+			double score = result.getScore();
+			for (int i = 0; i < bounds.length; i++) {
+				if (score > bounds[i]) {
+					return bandActions[i];
+				}
+			}
+		}
+
+		// If the recommended Action outcome is not defined, fallback to level
+		String advice = result.getRecommendedAction();
+		if (advice != null) {
+			Action action = recommendedActions.get(advice);
+			if (action != null) {
+				return action;
+			}
+			logger.warn("{}Outcome not found for recommended action {}", loggerPrefix, advice);
+		}
+
+		if (result.getLevel() != null) {
+			Action action = levelActions.get(result.getLevel());
+			if (action == null) {
+				throw new IllegalStateException("Unexpected level value: " + result.getLevel());
+			}
+			return action;
+		}
+
+		throw new IllegalArgumentException("Evaluation result is invalid" + result);
+	}
+
+	/**
+	 * Get the request body encoder of the configuration.
+	 *
+	 * @return The encoder
+	 */
+	EventEncoder encoder() {
+		return encoder;
+	}
+
+	/**
+	 * Get the fields of the risk evaluation result to store.
+	 *
+	 * @return The dotted paths of the fields, empty to store the whole result
+	 */
+	Set<String> projection() {
+		return projection;
+	}
+}
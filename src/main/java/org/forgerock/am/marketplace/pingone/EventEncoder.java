@@ -0,0 +1,185 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.pingone;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.forgerock.openam.utils.JsonValueBuilder;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.io.SerializedString;
+
+/**
+ * Streams the risk evaluation request body straight into bytes.
+ * <p>
+ * The request body has the same shape as {@link Event.Root}. The attributes that only depend on the node
+ * configuration (target resource, flow, sharing type, risk policy set and user type) are encoded once per
+ * configuration, the attributes of the request are written by a streaming generator, so that no intermediate
+ * string or JSON tree is built.
+ * </p>
+ */
+final class EventEncoder {
+
+	private static final JsonFactory factory = JsonValueBuilder.getObjectMapper().getFactory();
+	private static final ConcurrentMap<List<String>, EventEncoder> encoders = new ConcurrentHashMap<>();
+
+	private static final SerializedString EVENT = new SerializedString("event");
+	private static final SerializedString TARGET_RESOURCE = new SerializedString("targetResource");
+	private static final SerializedString IP = new SerializedString("ip");
+	private static final SerializedString SDK = new SerializedString("sdk");
+	private static final SerializedString SIGNALS = new SerializedString("signals");
+	private static final SerializedString DATA = new SerializedString("data");
+	private static final SerializedString FLOW = new SerializedString("flow");
+	private static final SerializedString USER = new SerializedString("user");
+	private static final SerializedString ID = new SerializedString("id");
+	private static final SerializedString NAME = new SerializedString("name");
+	private static final SerializedString TYPE = new SerializedString("type");
+	private static final SerializedString SHARING_TYPE = new SerializedString("sharingType");
+	private static final SerializedString BROWSER = new SerializedString("browser");
+	private static final SerializedString USER_AGENT = new SerializedString("userAgent");
+	private static final SerializedString RISK_POLICY_SET = new SerializedString("riskPolicySet");
+
+	private final SerializedString targetResource;
+	private final SerializedString flow;
+	private final SerializedString sharingType;
+	private final SerializedString riskPolicySet;
+	private final SerializedString userType;
+
+	private EventEncoder(String targetResourceId, String flowType, String sharingType, String riskPolicySetId,
+			String userType) {
+		this.targetResource = targetResourceId == null ? null : new SerializedString(idObject(targetResourceId));
+		this.flow = new SerializedString(typeObject(flowType));
+		this.sharingType = sharingType == null ? null : new SerializedString(sharingType);
+		this.riskPolicySet = riskPolicySetId == null ? null : new SerializedString(idObject(riskPolicySetId));
+		this.userType = userType == null ? null : new SerializedString(userType);
+	}
+
+	/**
+	 * Get the encoder of a node configuration.
+	 *
+	 * @param targetResourceId The target resource id, may be null
+	 * @param flowType         The flow type
+	 * @param sharingType      The device sharing type
+	 * @param riskPolicySetId  The risk policy set id, may be null
+	 * @param userType         The user type
+	 * @return The encoder
+	 */
+	static EventEncoder forConfig(String targetResourceId, String flowType, String sharingType,
+			String riskPolicySetId, String userType) {
+		List<String> key = Arrays.asList(targetResourceId, flowType, sharingType, riskPolicySetId, userType);
+		return encoders.computeIfAbsent(key,
+				k -> new EventEncoder(targetResourceId, flowType, sharingType, riskPolicySetId, userType));
+	}
+
+	/**
+	 * Encode a risk evaluation request body.
+	 *
+	 * @param ip        The client ip address, may be null
+	 * @param signals   The SDK signals, may be null
+	 * @param userAgent The browser user agent, may be null
+	 * @param userId    The user id, may be null
+	 * @param username  The username, may be null
+	 * @return The UTF-8 encoded JSON body
+	 * @throws IOException When the body cannot be encoded
+	 */
+	byte[] encode(String ip, String signals, String userAgent, String userId, String username)
+			throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(512 + (signals == null ? 0 : signals.length()));
+		try (JsonGenerator generator = factory.createGenerator(out)) {
+			generator.writeStartObject();
+			generator.writeFieldName(EVENT);
+			generator.writeStartObject();
+			if (targetResource != null) {
+				generator.writeFieldName(TARGET_RESOURCE);
+				generator.writeRawValue(targetResource);
+			}
+			if (ip != null) {
+				generator.writeFieldName(IP);
+				generator.writeString(ip);
+			}
+			if (signals != null && !signals.isEmpty()) {
+				generator.writeFieldName(SDK);
+				generator.writeStartObject();
+				generator.writeFieldName(SIGNALS);
+				generator.writeStartObject();
+				generator.writeFieldName(DATA);
+				generator.writeString(signals);
+				generator.writeEndObject();
+				generator.writeEndObject();
+			}
+			generator.writeFieldName(FLOW);
+			generator.writeRawValue(flow);
+			if (sharingType != null) {
+				generator.writeFieldName(SHARING_TYPE);
+				generator.writeString(sharingType);
+			}
+			if (userAgent != null) {
+				generator.writeFieldName(BROWSER);
+				generator.writeStartObject();
+				generator.writeFieldName(USER_AGENT);
+				generator.writeString(userAgent);
+				generator.writeEndObject();
+			}
+			// The user is written last, it is the only attribute that depends on the identity lookup.
+			writeUser(generator, userId, username);
+			generator.writeEndObject();
+			if (riskPolicySet != null) {
+				generator.writeFieldName(RISK_POLICY_SET);
+				generator.writeRawValue(riskPolicySet);
+			}
+			generator.writeEndObject();
+		}
+		return out.toByteArray();
+	}
+
+	private void writeUser(JsonGenerator generator, String userId, String username) throws IOException {
+		generator.writeFieldName(USER);
+		generator.writeStartObject();
+		if (userId != null) {
+			generator.writeFieldName(ID);
+			generator.writeString(userId);
+		}
+		if (username != null) {
+			generator.writeFieldName(NAME);
+			generator.writeString(username);
+		}
+		if (userType != null) {
+			generator.writeFieldName(TYPE);
+			generator.writeString(userType);
+		}
+		generator.writeEndObject();
+	}
+
+	private static String idObject(String id) {
+		return singleFieldObject("id", id);
+	}
+
+	private static String typeObject(String type) {
+		return singleFieldObject("type", type);
+	}
+
+	private static String singleFieldObject(String name, String value) {
+		StringWriter writer = new StringWriter();
+		try (JsonGenerator generator = factory.createGenerator(writer)) {
+			generator.writeStartObject();
+			generator.writeStringField(name, value);
+			generator.writeEndObject();
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return writer.toString();
+	}
+}
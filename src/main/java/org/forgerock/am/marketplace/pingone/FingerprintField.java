@@ -0,0 +1,37 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+package org.forgerock.am.marketplace.pingone;
+
+
+/**
+ * Request attributes that identify a cached risk evaluation.
+ */
+public enum FingerprintField {
+
+    /**
+     * User ID. Required for the result cache to be used, so that results are not shared between users.
+     */
+    USER_ID,
+    /**
+     * Client IP address.
+     */
+    IP,
+    /**
+     * Browser User-Agent.
+     */
+    USER_AGENT,
+    /**
+     * Flow Type.
+     */
+    FLOW_TYPE,
+    /**
+     * Risk Policy Set ID.
+     */
+    POLICY_SET;
+
+}
@@ -0,0 +1,149 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+package org.forgerock.am.marketplace.pingone;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.forgerock.util.annotations.VisibleForTesting;
+
+/**
+ * Lock free histogram of durations.
+ * <p>
+ * Durations are recorded in microseconds into log-linear buckets: each power of two is split in four buckets, which
+ * bounds the error of a percentile to 25%. Recording does not allocate. When a sample limit is set, all bucket counts
+ * are halved each time the limit is reached, so that percentiles follow recent traffic.
+ * </p>
+ */
+final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (Long.SIZE - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicBoolean decaying = new AtomicBoolean(false);
+    private final long sampleLimit;
+
+    /**
+     * Create a histogram that keeps all samples.
+     */
+    LatencyHistogram() {
+        this(0);
+    }
+
+    /**
+     * Create a histogram that decays once the number of samples reaches the limit.
+     *
+     * @param sampleLimit The sample limit, 0 for no decay
+     */
+    LatencyHistogram(long sampleLimit) {
+        this.sampleLimit = sampleLimit;
+    }
+
+    /**
+     * Record a duration.
+     *
+     * @param nanos The duration in nanoseconds
+     */
+    void record(long nanos) {
+        long micros = Math.max(TimeUnit.NANOSECONDS.toMicros(nanos), 0);
+        buckets.incrementAndGet(index(micros));
+        count.increment();
+        sum.add(micros);
+        if (sampleLimit > 0 && count.sum() >= sampleLimit && decaying.compareAndSet(false, true)) {
+            decay();
+        }
+    }
+
+    /**
+     * Number of recorded durations.
+     *
+     * @return The count
+     */
+    long count() {
+        return count.sum();
+    }
+
+    /**
+     * Sum of the recorded durations.
+     *
+     * @return The sum in microseconds
+     */
+    long sumMicros() {
+        return sum.sum();
+    }
+
+    /**
+     * Get a percentile of the recorded durations.
+     *
+     * @param percentile The percentile, between 0 and 100
+     * @return The upper bound of the bucket holding the percentile in microseconds, or -1 when empty
+     */
+    long percentileMicros(double percentile) {
+        long total = 0;
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return -1;
+        }
+        long rank = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank && counts[i] > 0) {
+                return upperBound(i);
+            }
+        }
+        return upperBound(BUCKETS - 1);
+    }
+
+    private void decay() {
+        try {
+            for (int i = 0; i < BUCKETS; i++) {
+                long value;
+                do {
+                    value = buckets.get(i);
+                } while (!buckets.compareAndSet(i, value, value / 2));
+            }
+            long removed = count.sum() / 2;
+            count.add(-removed);
+            sum.add(-sum.sum() / 2);
+        } finally {
+            decaying.set(false);
+        }
+    }
+
+    @VisibleForTesting
+    static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int magnitude = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    @VisibleForTesting
+    static long upperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int magnitude = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = index % SUB_BUCKETS;
+        long lowerBound = (1L << magnitude) + (subBucket << (magnitude - SUB_BUCKET_BITS));
+        return lowerBound + (1L << (magnitude - SUB_BUCKET_BITS)) - 1;
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+package org.forgerock.am.marketplace.pingone;
+
+/**
+ * A PingOne API call answered with an unexpected HTTP status. When the HTTP client could not get a response from
+ * PingOne, the status is the one of the error response of the client and the cause is the transport failure.
+ */
+final class PingOneApiException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int status;
+
+    /**
+     * Create the exception.
+     *
+     * @param message The message
+     * @param status  The HTTP status code of the response
+     * @param cause   The transport failure, or null if PingOne responded
+     */
+    PingOneApiException(String message, int status, Throwable cause) {
+        super(message, cause);
+        this.status = status;
+    }
+
+    /**
+     * Get the HTTP status code of the response.
+     *
+     * @return The status code
+     */
+    int getStatus() {
+        return status;
+    }
+}
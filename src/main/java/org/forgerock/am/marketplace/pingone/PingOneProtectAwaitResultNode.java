@@ -0,0 +1,194 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.pingone;
+
+import static java.util.Collections.emptyList;
+import static org.forgerock.am.marketplace.pingone.PingOneProtectEvaluationNode.OutcomeProvider.ERROR;
+import static org.forgerock.am.marketplace.pingone.PingOneProtectEvaluationNode.OutcomeProvider.EXCEED_OUTCOME_ID;
+import static org.forgerock.am.marketplace.pingone.PingOneProtectEvaluationNode.OutcomeProvider.HIGH_OUTCOME_ID;
+import static org.forgerock.am.marketplace.pingone.PingOneProtectEvaluationNode.OutcomeProvider.LOW_OUTCOME_ID;
+import static org.forgerock.am.marketplace.pingone.PingOneProtectEvaluationNode.OutcomeProvider.MEDIUM_OUTCOME_ID;
+import static org.forgerock.am.marketplace.pingone.PingOneProtectEvaluationNode.OutcomeProvider.TIMEOUT_OUTCOME_ID;
+import static org.forgerock.am.marketplace.pingone.PingOneProtectEvaluationNode.StateKey.PENDING_EVALUATION;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.ResourceBundle;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.inject.Inject;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.annotations.sm.Attribute;
+import org.forgerock.openam.auth.node.api.Action;
+import org.forgerock.openam.auth.node.api.Node;
+import org.forgerock.openam.auth.node.api.NodeProcessException;
+import org.forgerock.openam.auth.node.api.NodeState;
+import org.forgerock.openam.auth.node.api.SingleOutcomeNode;
+import org.forgerock.openam.auth.node.api.TreeContext;
+import org.forgerock.openam.core.realms.Realm;
+import org.forgerock.util.i18n.PreferredLocales;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.inject.assistedinject.Assisted;
+
+/**
+ * Take the outcome of a risk evaluation started by a {@link PingOneProtectEvaluationNode} in asynchronous mode,
+ * waiting for it for a bounded time.
+ */
+@Node.Metadata(outcomeProvider = PingOneProtectAwaitResultNode.OutcomeProvider.class, configClass = PingOneProtectAwaitResultNode.Config.class, tags = {
+		"marketplace", "trustnetwork" })
+public class PingOneProtectAwaitResultNode extends SingleOutcomeNode {
+
+	private static final Logger logger = LoggerFactory.getLogger(PingOneProtectAwaitResultNode.class);
+	private static final String loggerPrefix = "[PingOneProtectAwaitResultNode]" + PingOneProtectPlugin.logAppender;
+	private static final PingOneProtectErrorReporter errors = new PingOneProtectErrorReporter(logger, loggerPrefix);
+
+	private static final String ADDITIONAL_OUTCOMES = "additionalOutcomes";
+
+	private final Config config;
+	private final Realm realm;
+
+	/**
+	 * Configuration for the node.
+	 */
+	public interface Config {
+
+		/**
+		 * The maximum time to wait for the risk evaluation, in milliseconds.
+		 *
+		 * @return The maximum wait, 0 to take the outcome only if the evaluation is complete
+		 */
+		@Attribute(order = 100)
+		default int maxWait() {
+			return 2000;
+		}
+
+		/**
+		 * The recommended action and score band outcomes configured on the Evaluation node.
+		 *
+		 * @return The additional outcomes
+		 */
+		@Attribute(order = 200)
+		default List<String> additionalOutcomes() {
+			return emptyList();
+		}
+	}
+
+	/**
+	 * Create the node using Guice injection. Just-in-time bindings can be used to
+	 * obtain instances of other classes from the plugin.
+	 *
+	 * @param config                The Node configuration.
+	 * @param realm                 The current realm.
+	 */
+	@Inject
+	public PingOneProtectAwaitResultNode(@Assisted Config config, @Assisted Realm realm) {
+		this.config = config;
+		this.realm = realm;
+	}
+
+	@Override
+	public Action process(TreeContext context) throws NodeProcessException {
+		NodeState state = context.getStateFor(this);
+		JsonValue handle = state.get(PENDING_EVALUATION);
+		if (handle == null || !handle.isString()) {
+			logger.warn("{}No risk evaluation has been started asynchronously", loggerPrefix);
+			return Action.goTo(ERROR).build();
+		}
+		PingOneProtectPendingEvaluations pending = PingOneProtectPendingEvaluations.getInstance();
+		CompletableFuture<PingOneProtectPendingEvaluations.Completed> future = pending.get(handle.asString());
+		if (future == null) {
+			// Expired, or started on another AM server.
+			logger.warn("{}Risk evaluation {} not found", loggerPrefix, handle.asString());
+			state.remove(PENDING_EVALUATION);
+			return Action.goTo(ERROR).build();
+		}
+		try {
+			PingOneProtectPendingEvaluations.Completed completed =
+					future.get(Math.max(config.maxWait(), 0), TimeUnit.MILLISECONDS);
+			pending.remove(handle.asString());
+			state.remove(PENDING_EVALUATION);
+			PingOneProtectEvaluationNode.storeResult(state, completed.getResult(), completed.getWorkerName(),
+					completed.isCompactState(), completed.isStoreEvaluateResult(), completed.isCached());
+			PingOneProtectMetrics metrics = PingOneProtectMetrics.forWorker(realm, completed.getWorkerName());
+			if (!hasOutcome(completed.getOutcome())) {
+				logger.warn("{}Outcome {} is not an outcome of this node", loggerPrefix, completed.getOutcome());
+				return metrics.recordOutcome(Action.goTo(ERROR).build());
+			}
+			return metrics.recordOutcome(Action.goTo(completed.getOutcome()).build());
+		} catch (TimeoutException e) {
+			// Keep the handle, the journey can await the evaluation again.
+			errors.report(state,
+					new TimeoutException("Risk evaluation not complete after " + config.maxWait() + " ms"));
+			return Action.goTo(TIMEOUT_OUTCOME_ID).build();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return Action.goTo(ERROR).build();
+		} catch (ExecutionException e) {
+			pending.remove(handle.asString());
+			state.remove(PENDING_EVALUATION);
+			Exception cause = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+			ErrorCode code = errors.report(state, cause);
+			if (code == ErrorCode.TIMEOUT) {
+				return Action.goTo(TIMEOUT_OUTCOME_ID).build();
+			}
+			return Action.goTo(ERROR).withHeader("Error occurred").withErrorMessage(cause.getMessage()).build();
+		}
+	}
+
+	private boolean hasOutcome(String outcome) {
+		switch (outcome) {
+		case HIGH_OUTCOME_ID:
+		case MEDIUM_OUTCOME_ID:
+		case LOW_OUTCOME_ID:
+		case EXCEED_OUTCOME_ID:
+			return true;
+		default:
+			return config.additionalOutcomes().stream().map(String::trim).anyMatch(outcome::equals);
+		}
+	}
+
+	/**
+	 * Provides the authentication node's set of outcomes.
+	 */
+	public static class OutcomeProvider implements org.forgerock.openam.auth.node.api.OutcomeProvider {
+		private static final String BUNDLE = PingOneProtectAwaitResultNode.class.getName();
+
+		@Override
+		public List<Outcome> getOutcomes(PreferredLocales locales, JsonValue nodeAttributes)
+				throws NodeProcessException {
+
+			ResourceBundle bundle = locales.getBundleInPreferredLocale(BUNDLE,
+					PingOneProtectAwaitResultNode.OutcomeProvider.class.getClassLoader());
+
+			ArrayList<Outcome> outcomes = new ArrayList<>();
+
+			outcomes.add(new Outcome(HIGH_OUTCOME_ID, bundle.getString(HIGH_OUTCOME_ID)));
+			outcomes.add(new Outcome(MEDIUM_OUTCOME_ID, bundle.getString(MEDIUM_OUTCOME_ID)));
+			outcomes.add(new Outcome(LOW_OUTCOME_ID, bundle.getString(LOW_OUTCOME_ID)));
+			outcomes.add(new Outcome(EXCEED_OUTCOME_ID, bundle.getString(EXCEED_OUTCOME_ID)));
+			if (nodeAttributes.isNotNull()) {
+				// nodeAttributes is null when the node is created
+				nodeAttributes.get(ADDITIONAL_OUTCOMES).defaultTo(emptyList()).asList(String.class).stream()
+						.map(String::trim).distinct()
+						.filter(outcome -> outcomes.stream().noneMatch(o -> o.id.equals(outcome)))
+						.map(outcome -> new Outcome(outcome, outcome)).forEach(outcomes::add);
+			}
+			outcomes.add(new Outcome(TIMEOUT_OUTCOME_ID, bundle.getString(TIMEOUT_OUTCOME_ID)));
+			outcomes.add(new Outcome(ERROR, bundle.getString(ERROR)));
+
+			return outcomes;
+		}
+	}
+}
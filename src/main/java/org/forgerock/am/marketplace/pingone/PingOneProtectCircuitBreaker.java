@@ -0,0 +1,253 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.pingone;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.forgerock.openam.auth.service.marketplace.TNTPPingOneConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.iplanet.am.util.SystemProperties;
+
+/**
+ * Circuit breaker around the PingOne Protect API calls of a worker.
+ * <p>
+ * The outcome and duration of the last calls are kept in a sliding window. When the share of failed calls or of
+ * slow calls reaches its threshold the circuit opens, and calls are rejected without contacting PingOne. Once the
+ * open period has passed a single probe call is let through, the circuit closes if it succeeds and opens again
+ * otherwise. A probe that does not report back within the slow call duration counts as a slow call, and opens the
+ * circuit again.
+ * </p>
+ * <p>
+ * Each call reports its outcome through the {@link Permit} it was given, so that only the probe can close the
+ * circuit, and calls started before the circuit opened are ignored.
+ * </p>
+ */
+final class PingOneProtectCircuitBreaker {
+
+	private static final Logger logger = LoggerFactory.getLogger(PingOneProtectCircuitBreaker.class);
+	private static final String loggerPrefix = "[PingOneProtectCircuitBreaker]" + PingOneProtectPlugin.logAppender;
+
+	static final String PROPERTY_PREFIX = "org.forgerock.am.marketplace.pingone.circuitBreaker.";
+	static final String ENABLED = PROPERTY_PREFIX + "enabled";
+	static final String WINDOW_SIZE = PROPERTY_PREFIX + "windowSize";
+	static final String MINIMUM_CALLS = PROPERTY_PREFIX + "minimumCalls";
+	static final String FAILURE_RATE = PROPERTY_PREFIX + "failureRateThreshold";
+	static final String SLOW_CALL_DURATION = PROPERTY_PREFIX + "slowCallDurationMillis";
+	static final String SLOW_CALL_RATE = PROPERTY_PREFIX + "slowCallRateThreshold";
+	static final String OPEN_DURATION = PROPERTY_PREFIX + "openDurationSeconds";
+
+	private static final ConcurrentMap<String, PingOneProtectCircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+	/**
+	 * Circuit state.
+	 */
+	enum State {
+		/**
+		 * Calls are let through and recorded.
+		 */
+		CLOSED,
+		/**
+		 * Calls are rejected.
+		 */
+		OPEN,
+		/**
+		 * A single probe call is let through.
+		 */
+		HALF_OPEN
+	}
+
+	private final String name;
+	private final boolean enabled;
+	private final int minimumCalls;
+	private final int failureRateThreshold;
+	private final long slowCallDuration;
+	private final int slowCallRateThreshold;
+	private final long openDuration;
+	private final byte[] window;
+	private final Permit call = new Permit(false, 0L);
+
+	private volatile State state = State.CLOSED;
+	private volatile long openUntil;
+	private int position;
+	private int calls;
+	private int failures;
+	private int slowCalls;
+	private Permit probe;
+
+	private PingOneProtectCircuitBreaker(String name) {
+		this.name = name;
+		this.enabled = SystemProperties.getAsBoolean(ENABLED, true);
+		this.window = new byte[Math.max(SystemProperties.getAsInt(WINDOW_SIZE, 50), 1)];
+		this.minimumCalls = Math.min(SystemProperties.getAsInt(MINIMUM_CALLS, 20), window.length);
+		this.failureRateThreshold = SystemProperties.getAsInt(FAILURE_RATE, 50);
+		this.slowCallDuration = TimeUnit.MILLISECONDS.toNanos(SystemProperties.getAsInt(SLOW_CALL_DURATION, 3000));
+		this.slowCallRateThreshold = SystemProperties.getAsInt(SLOW_CALL_RATE, 80);
+		this.openDuration = TimeUnit.SECONDS.toNanos(SystemProperties.getAsInt(OPEN_DURATION, 30));
+	}
+
+	/**
+	 * Get the circuit breaker of a worker.
+	 *
+	 * @param worker The PingOne worker configuration
+	 * @return The circuit breaker
+	 */
+	static PingOneProtectCircuitBreaker forWorker(TNTPPingOneConfig worker) {
+		return breakers.computeIfAbsent(worker.id(), PingOneProtectCircuitBreaker::new);
+	}
+
+	/**
+	 * Drop the circuit breaker of a worker, e.g. when its configuration changed.
+	 *
+	 * @param workerId The PingOne worker configuration id
+	 */
+	static void invalidate(String workerId) {
+		breakers.remove(workerId);
+	}
+
+	/**
+	 * Ask permission for a call.
+	 *
+	 * @return The permit to report the call outcome with, or {@literal null} if the circuit is open
+	 */
+	Permit tryAcquire() {
+		if (!enabled || state == State.CLOSED) {
+			return call;
+		}
+		long now = System.nanoTime();
+		if (state == State.OPEN && now - openUntil < 0) {
+			return null;
+		}
+		synchronized (this) {
+			if (state == State.OPEN) {
+				if (now - openUntil < 0) {
+					return null;
+				}
+				state = State.HALF_OPEN;
+				logger.info("{}Circuit for {} is half open", loggerPrefix, name);
+			} else if (state == State.CLOSED) {
+				return call;
+			}
+			if (probe != null) {
+				if (now - probe.start < slowCallDuration) {
+					return null;
+				}
+				// The probe never reported back, e.g. its task was dropped, and is as bad as a slow call.
+				logger.warn("{}Probe for {} did not complete in time", loggerPrefix, name);
+				open();
+				return null;
+			}
+			probe = new Permit(true, now);
+			return probe;
+		}
+	}
+
+	/**
+	 * Get the circuit state.
+	 *
+	 * @return The state
+	 */
+	State state() {
+		return state;
+	}
+
+	private synchronized void record(Permit permit, boolean success, long duration) {
+		if (!enabled) {
+			return;
+		}
+		boolean slow = duration >= slowCallDuration;
+		if (permit.probeCall) {
+			if (permit != probe) {
+				// A probe that expired, the circuit opened again without it.
+				return;
+			}
+			probe = null;
+			if (success && !slow) {
+				reset();
+				state = State.CLOSED;
+				logger.info("{}Circuit for {} is closed", loggerPrefix, name);
+			} else {
+				open();
+			}
+			return;
+		}
+		if (state != State.CLOSED) {
+			// A call started before the circuit opened.
+			return;
+		}
+		// Each slot holds bit 0 for a failure and bit 1 for a slow call.
+		byte outcome = (byte) ((success ? 0 : 1) | (slow ? 2 : 0));
+		if (calls == window.length) {
+			byte evicted = window[position];
+			failures -= evicted & 1;
+			slowCalls -= (evicted >> 1) & 1;
+		} else {
+			calls++;
+		}
+		window[position] = outcome;
+		position = (position + 1) % window.length;
+		failures += outcome & 1;
+		slowCalls += (outcome >> 1) & 1;
+		if (calls >= minimumCalls && (failures * 100 >= failureRateThreshold * calls
+				|| slowCalls * 100 >= slowCallRateThreshold * calls)) {
+			logger.warn("{}Opening circuit for {}, {} failed and {} slow out of {} calls", loggerPrefix, name,
+					failures, slowCalls, calls);
+			open();
+		}
+	}
+
+	private void open() {
+		reset();
+		probe = null;
+		openUntil = System.nanoTime() + openDuration;
+		state = State.OPEN;
+	}
+
+	private void reset() {
+		position = 0;
+		calls = 0;
+		failures = 0;
+		slowCalls = 0;
+	}
+
+	/**
+	 * Permission for a single call, through which the call reports its outcome.
+	 */
+	final class Permit {
+
+		private final boolean probeCall;
+		private final long start;
+
+		private Permit(boolean probeCall, long start) {
+			this.probeCall = probeCall;
+			this.start = start;
+		}
+
+		/**
+		 * Record a successful call.
+		 *
+		 * @param duration The call duration in nanoseconds
+		 */
+		void onSuccess(long duration) {
+			record(this, true, duration);
+		}
+
+		/**
+		 * Record a failed call.
+		 *
+		 * @param duration The call duration in nanoseconds
+		 */
+		void onFailure(long duration) {
+			record(this, false, duration);
+		}
+	}
+}
@@ -0,0 +1,319 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.pingone;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.forgerock.openam.auth.service.marketplace.TNTPPingOneConfig;
+import org.forgerock.openam.core.realms.Realm;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.iplanet.am.util.SystemProperties;
+
+/**
+ * Delivers risk evaluation completion updates in the background for the {@link PingOneProtectResultNode}.
+ * <p>
+ * Updates are put on a bounded queue and the journey continues straight away. Updates for a risk evaluation that is
+ * still queued are coalesced, only the latest completion status is sent. Failed deliveries are retried with an
+ * exponential backoff. An update rejected by PingOne with a client error, or still failing after the last attempt, is
+ * abandoned. When the queue is full the update is dropped and counted.
+ * </p>
+ * <p>
+ * When the {@link PingOneProtectOutbox} is enabled every update is journaled before it is queued, and acknowledged
+ * once delivered or abandoned. Updates that are dropped or lost on a restart are replayed from the outbox.
+ * </p>
+ */
+final class PingOneProtectCompletionDispatcher {
+
+	private static final Logger logger = LoggerFactory.getLogger(PingOneProtectCompletionDispatcher.class);
+	private static final String loggerPrefix = "[PingOneProtectCompletionDispatcher]" + PingOneProtectPlugin.logAppender;
+
+	static final String PROPERTY_PREFIX = "org.forgerock.am.marketplace.pingone.dispatcher.";
+	static final String QUEUE_SIZE = PROPERTY_PREFIX + "queueSize";
+	static final String CONCURRENCY = PROPERTY_PREFIX + "concurrency";
+	static final String MAX_ATTEMPTS = PROPERTY_PREFIX + "maxAttempts";
+
+	private static final long INITIAL_BACKOFF = 500;
+	private static final long MAX_BACKOFF = TimeUnit.SECONDS.toMillis(30);
+
+	private static final PingOneProtectCompletionDispatcher INSTANCE = new PingOneProtectCompletionDispatcher();
+
+	private final ConcurrentMap<String, Update> pending = new ConcurrentHashMap<>();
+	private final LongAdder dropped = new LongAdder();
+	private final LongAdder coalesced = new LongAdder();
+	private final LongAdder delivered = new LongAdder();
+	private final LongAdder failed = new LongAdder();
+	private volatile BlockingQueue<String> queue;
+	private ExecutorService workers;
+	private ScheduledExecutorService retries;
+
+	private PingOneProtectCompletionDispatcher() {
+	}
+
+	/**
+	 * Get the dispatcher instance.
+	 *
+	 * @return The dispatcher
+	 */
+	static PingOneProtectCompletionDispatcher getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Queue a completion update.
+	 *
+	 * @param realm      The realm
+	 * @param workerName The name of the PingOne worker configuration
+	 * @param worker     The PingOne worker configuration
+	 * @param riskEvalId The risk evaluation id
+	 * @param status     The completion status
+	 * @return {@literal true} if the update is queued, {@literal false} if it is dropped
+	 */
+	boolean submit(Realm realm, String workerName, TNTPPingOneConfig worker, String riskEvalId, String status) {
+		long outboxId = PingOneProtectOutbox.getInstance().append(realm.asPath(), workerName, riskEvalId, status);
+		return enqueue(new Update(realm, workerName, worker, riskEvalId, status, outboxId, 0));
+	}
+
+	/**
+	 * Queue a completion update replayed from the outbox. An update queued since for the same risk evaluation
+	 * takes precedence.
+	 *
+	 * @param realm      The realm
+	 * @param workerName The name of the PingOne worker configuration
+	 * @param worker     The PingOne worker configuration
+	 * @param riskEvalId The risk evaluation id
+	 * @param status     The completion status
+	 * @param outboxId   The outbox id of the update
+	 */
+	void replay(Realm realm, String workerName, TNTPPingOneConfig worker, String riskEvalId, String status,
+			long outboxId) {
+		start();
+		retry(new Update(realm, workerName, worker, riskEvalId, status, outboxId, 0));
+	}
+
+	/**
+	 * Number of updates waiting for delivery.
+	 *
+	 * @return The queue depth
+	 */
+	int queueDepth() {
+		return pending.size();
+	}
+
+	/**
+	 * Number of updates dropped because the queue was full.
+	 *
+	 * @return The drop count
+	 */
+	long dropped() {
+		return dropped.sum();
+	}
+
+	/**
+	 * Number of updates merged into an update already queued for the same risk evaluation.
+	 *
+	 * @return The coalesced count
+	 */
+	long coalesced() {
+		return coalesced.sum();
+	}
+
+	/**
+	 * Number of updates delivered to PingOne.
+	 *
+	 * @return The delivered count
+	 */
+	long delivered() {
+		return delivered.sum();
+	}
+
+	/**
+	 * Number of updates abandoned after the last retry, or rejected by PingOne.
+	 *
+	 * @return The failed count
+	 */
+	long failed() {
+		return failed.sum();
+	}
+
+	/**
+	 * Stop the delivery threads. Updates still queued are abandoned, unless they are journaled in the outbox, in
+	 * which case they are replayed on the next start. Called when the plugin shuts down.
+	 */
+	synchronized void shutdown() {
+		if (workers != null) {
+			workers.shutdownNow();
+			retries.shutdownNow();
+			if (!pending.isEmpty()) {
+				logger.warn("{}{} completion updates not delivered on shutdown", loggerPrefix, pending.size());
+			}
+			pending.clear();
+			workers = null;
+			retries = null;
+			queue = null;
+		}
+	}
+
+	private boolean enqueue(Update update) {
+		BlockingQueue<String> queue = start();
+		Update previous = pending.put(update.riskEvalId, update);
+		if (previous != null) {
+			// Still queued, the worker will pick up the latest status.
+			coalesced.increment();
+			superseded(previous, update);
+			return true;
+		}
+		if (!queue.offer(update.riskEvalId)) {
+			pending.remove(update.riskEvalId, update);
+			dropped.increment();
+			logger.warn("{}Completion update queue is full, dropping update for {}", loggerPrefix, update.riskEvalId);
+			return false;
+		}
+		return true;
+	}
+
+	private synchronized BlockingQueue<String> start() {
+		if (workers == null) {
+			int concurrency = Math.max(SystemProperties.getAsInt(CONCURRENCY, 4), 1);
+			queue = new LinkedBlockingQueue<>(SystemProperties.getAsInt(QUEUE_SIZE, 10000));
+			workers = Executors.newFixedThreadPool(concurrency,
+					new ThreadFactoryBuilder().setNameFormat("PingOneProtect-dispatcher-%d").setDaemon(true).build());
+			retries = Executors.newSingleThreadScheduledExecutor(
+					new ThreadFactoryBuilder().setNameFormat("PingOneProtect-dispatcher-retry-%d").setDaemon(true)
+							.build());
+			for (int i = 0; i < concurrency; i++) {
+				workers.execute(this::drain);
+			}
+		}
+		return queue;
+	}
+
+	private void drain() {
+		BlockingQueue<String> queue = this.queue;
+		while (!Thread.currentThread().isInterrupted()) {
+			try {
+				Update update = pending.remove(queue.take());
+				if (update != null) {
+					deliver(update);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private void deliver(Update update) {
+		try {
+			String accessToken = PingOneProtectTokenManager.getInstance().getAccessToken(update.realm, update.worker);
+			PingOneProtectResultNode.updateCompletionStatus(accessToken, update.worker, update.riskEvalId,
+					update.status, PingOneProtectMetrics.forWorker(update.realm, update.workerName));
+			delivered.increment();
+			PingOneProtectOutbox.getInstance().ack(update.outboxId);
+		} catch (Exception e) {
+			int attempts = update.attempts + 1;
+			if (isPermanent(e)) {
+				abandon(update);
+				logger.warn("{}Completion update for {} rejected by PingOne, not retried", loggerPrefix,
+						update.riskEvalId, e);
+				return;
+			}
+			if (attempts >= SystemProperties.getAsInt(MAX_ATTEMPTS, 5)) {
+				abandon(update);
+				logger.warn("{}Giving up on completion update for {} after {} attempts", loggerPrefix,
+						update.riskEvalId, attempts, e);
+				return;
+			}
+			long backoff = Math.min(INITIAL_BACKOFF << update.attempts, MAX_BACKOFF);
+			long delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+			logger.debug("{}Retrying completion update for {} in {}ms", loggerPrefix, update.riskEvalId, delay, e);
+			retries.schedule(() -> retry(update.nextAttempt()), delay, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Abandon an update. It is acknowledged in the outbox as well, a replay would fail the same way and keep its
+	 * journal segment from being compacted.
+	 */
+	private void abandon(Update update) {
+		failed.increment();
+		PingOneProtectOutbox.getInstance().ack(update.outboxId);
+	}
+
+	/**
+	 * Whether a delivery failure would fail again on a retry, i.e. PingOne rejected the update with a client error
+	 * other than a timeout or rate limit.
+	 */
+	static boolean isPermanent(Throwable failure) {
+		for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+			if (cause instanceof PingOneApiException) {
+				int status = ((PingOneApiException) cause).getStatus();
+				return status >= 400 && status < 500 && status != 408 && status != 429;
+			}
+		}
+		return false;
+	}
+
+	private void retry(Update update) {
+		// A newer update for the same risk evaluation takes precedence over the retry.
+		Update newer = pending.putIfAbsent(update.riskEvalId, update);
+		if (newer != null) {
+			superseded(update, newer);
+		} else if (!queue.offer(update.riskEvalId)) {
+			pending.remove(update.riskEvalId, update);
+			dropped.increment();
+		} else {
+			PingOneProtectOutbox.getInstance().submitted(update.outboxId);
+		}
+	}
+
+	private void superseded(Update update, Update by) {
+		if (update.outboxId != by.outboxId) {
+			PingOneProtectOutbox.getInstance().ack(update.outboxId);
+		}
+	}
+
+	/**
+	 * A completion update for a risk evaluation.
+	 */
+	static final class Update {
+		final Realm realm;
+		final String workerName;
+		final TNTPPingOneConfig worker;
+		final String riskEvalId;
+		final String status;
+		final long outboxId;
+		final int attempts;
+
+		Update(Realm realm, String workerName, TNTPPingOneConfig worker, String riskEvalId, String status,
+				long outboxId, int attempts) {
+			this.realm = realm;
+			this.workerName = workerName;
+			this.worker = worker;
+			this.riskEvalId = riskEvalId;
+			this.status = status;
+			this.outboxId = outboxId;
+			this.attempts = attempts;
+		}
+
+		Update nextAttempt() {
+			return new Update(realm, workerName, worker, riskEvalId, status, outboxId, attempts + 1);
+		}
+	}
+}
@@ -0,0 +1,146 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.pingone;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.forgerock.openam.auth.node.api.NodeState;
+import org.slf4j.Logger;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.iplanet.am.util.SystemProperties;
+
+/**
+ * Reports the failures of a PingOne Protect node.
+ * <p>
+ * A failure is classified as an {@link ErrorCode}, which is stored in the transient state under {@link #ERROR_CODE}
+ * and logged on a single line. During an outage every journey fails the same way, so the stack trace of a failure is
+ * only logged once per interval and error code, together with the number of failures logged without it. The stack
+ * traces of all failures are logged at debug level.
+ * </p>
+ */
+final class PingOneProtectErrorReporter {
+
+	/**
+	 * Transient state variable name of the error code.
+	 */
+	static final String ERROR_CODE = "PingOneProtectError";
+
+	static final String PROPERTY_PREFIX = "org.forgerock.am.marketplace.pingone.errors.";
+	/**
+	 * Minimum seconds between two stack traces of the same error code.
+	 */
+	static final String STACK_TRACE_INTERVAL = PROPERTY_PREFIX + "stackTraceIntervalSeconds";
+
+	private static final int MAX_CLIENT_ERROR_LENGTH = 256;
+
+	private final Logger logger;
+	private final String loggerPrefix;
+	private final long interval;
+	private final AtomicLongArray nextStackTrace = new AtomicLongArray(ErrorCode.values().length);
+	private final LongAdder[] withoutStackTrace = new LongAdder[ErrorCode.values().length];
+
+	/**
+	 * Create a reporter logging to the logger of a node.
+	 *
+	 * @param logger       The node logger
+	 * @param loggerPrefix The node log prefix
+	 */
+	PingOneProtectErrorReporter(Logger logger, String loggerPrefix) {
+		this.logger = logger;
+		this.loggerPrefix = loggerPrefix;
+		this.interval = TimeUnit.SECONDS.toMillis(SystemProperties.getAsInt(STACK_TRACE_INTERVAL, 60));
+		for (int i = 0; i < withoutStackTrace.length; i++) {
+			withoutStackTrace[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Report a failure of the node.
+	 *
+	 * @param state The node state
+	 * @param e     The failure
+	 * @return The error code of the failure
+	 */
+	ErrorCode report(NodeState state, Exception e) {
+		ErrorCode code = classify(e);
+		state.putTransient(ERROR_CODE, code.name());
+		Throwable cause = rootCause(e);
+		String causeMessage = cause == e ? "" : cause.getMessage();
+		int index = code.ordinal();
+		if (stackTraceDue(index)) {
+			logger.error("{}{} {} {} ({} more without stack trace)", loggerPrefix, code, e.getMessage(), causeMessage,
+					withoutStackTrace[index].sumThenReset(), e);
+			return code;
+		}
+		withoutStackTrace[index].increment();
+		if (code == ErrorCode.TIMEOUT) {
+			logger.warn("{}{} {} {}", loggerPrefix, code, e.getMessage(), causeMessage);
+		} else {
+			logger.error("{}{} {} {}", loggerPrefix, code, e.getMessage(), causeMessage);
+		}
+		logger.debug("{}Stack trace of the {} error", loggerPrefix, code, e);
+		return code;
+	}
+
+	/**
+	 * Report an error collecting the signals on the client.
+	 *
+	 * @param state       The node state
+	 * @param clientError The error reported by the client
+	 */
+	void reportClientError(NodeState state, String clientError) {
+		state.putTransient(ERROR_CODE, ErrorCode.CLIENT_ERROR.name());
+		logger.warn("{}{} {}", loggerPrefix, ErrorCode.CLIENT_ERROR, clientError.length() > MAX_CLIENT_ERROR_LENGTH
+				? clientError.substring(0, MAX_CLIENT_ERROR_LENGTH) : clientError);
+	}
+
+	/**
+	 * Classify a failure by the first cause that identifies it.
+	 *
+	 * @param e The failure
+	 * @return The error code
+	 */
+	static ErrorCode classify(Throwable e) {
+		for (Throwable cause = e; cause != null; cause = cause.getCause() == cause ? null : cause.getCause()) {
+			if (cause instanceof TimeoutException || cause instanceof SocketTimeoutException) {
+				return ErrorCode.TIMEOUT;
+			}
+			if (cause instanceof PingOneApiException && cause.getCause() == null) {
+				return ((PingOneApiException) cause).getStatus() >= 500 ? ErrorCode.HTTP_5XX : ErrorCode.HTTP_4XX;
+			}
+			if (cause instanceof JsonProcessingException) {
+				return ErrorCode.PARSE_ERROR;
+			}
+			if (cause instanceof IOException) {
+				return ErrorCode.CONNECTION_ERROR;
+			}
+		}
+		return ErrorCode.INTERNAL_ERROR;
+	}
+
+	private boolean stackTraceDue(int index) {
+		long now = System.currentTimeMillis();
+		long next = nextStackTrace.get(index);
+		return now >= next && nextStackTrace.compareAndSet(index, next, now + interval);
+	}
+
+	private static Throwable rootCause(Throwable e) {
+		Throwable cause = e;
+		while (cause.getCause() != null && cause.getCause() != cause) {
+			cause = cause.getCause();
+		}
+		return cause;
+	}
+}
@@ -9,27 +9,37 @@
 package org.forgerock.am.marketplace.pingone;
 
 import static java.util.Collections.emptyList;
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.emptySet;
+import static java.util.Collections.singleton;
 import static org.forgerock.am.marketplace.pingone.PingOneProtectEvaluationNode.OutcomeProvider.ERROR;
-import static org.forgerock.am.marketplace.pingone.PingOneProtectEvaluationNode.OutcomeProvider.EXCEED_OUTCOME_ID;
-import static org.forgerock.am.marketplace.pingone.PingOneProtectEvaluationNode.OutcomeProvider.HIGH_OUTCOME_ID;
-import static org.forgerock.am.marketplace.pingone.PingOneProtectEvaluationNode.OutcomeProvider.LOW_OUTCOME_ID;
-import static org.forgerock.am.marketplace.pingone.PingOneProtectEvaluationNode.OutcomeProvider.MEDIUM_OUTCOME_ID;
+import static org.forgerock.am.marketplace.pingone.PingOneProtectEvaluationNode.OutcomeProvider.PENDING_OUTCOME_ID;
+import static org.forgerock.am.marketplace.pingone.PingOneProtectEvaluationNode.OutcomeProvider.TIMEOUT_OUTCOME_ID;
+import static org.forgerock.am.marketplace.pingone.PingOneProtectEvaluationNode.StateKey.PENDING_EVALUATION;
 import static org.forgerock.am.marketplace.pingone.PingOneProtectEvaluationNode.StateKey.PINGONE_PROTECT_WORKER;
 import static org.forgerock.am.marketplace.pingone.PingOneProtectEvaluationNode.StateKey.RISK_EVALUATE_ID;
 import static org.forgerock.am.marketplace.pingone.PingOneProtectEvaluationNode.StateKey.RISK_EVALUATE_RESULT;
+import static org.forgerock.am.marketplace.pingone.PingOneProtectEvaluationNode.StateKey.PREFETCH_NONCE;
+import static org.forgerock.am.marketplace.pingone.PingOneProtectEvaluationNode.StateKey.RISK_REFERENCE;
 import static org.forgerock.json.JsonValue.json;
 import static org.forgerock.openam.auth.node.api.SharedStateConstants.REALM;
 import static org.forgerock.openam.auth.node.api.SharedStateConstants.USERNAME;
-import static org.forgerock.openam.auth.nodes.helpers.AuthNodeUserIdentityHelper.getAMIdentity;
 
-import java.math.BigDecimal;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.ResourceBundle;
 import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -37,10 +47,11 @@ import javax.inject.Inject;
 import javax.security.auth.callback.Callback;
 
 import com.sun.identity.authentication.spi.MetadataCallback;
-import org.apache.commons.lang3.StringUtils;
 import org.forgerock.am.identity.application.LegacyIdentityService;
 import org.forgerock.http.handler.HttpClientHandler;
 import org.forgerock.http.header.AuthorizationHeader;
+import org.forgerock.http.header.ContentLengthHeader;
+import org.forgerock.http.header.ContentTypeHeader;
 import org.forgerock.http.header.MalformedHeaderException;
 import org.forgerock.http.header.authorization.BearerToken;
 import org.forgerock.http.protocol.Request;
@@ -59,7 +70,6 @@ import org.forgerock.openam.auth.node.api.TreeContext;
 import org.forgerock.openam.auth.nodes.validators.DecimalValidator;
 import org.forgerock.openam.auth.service.marketplace.TNTPPingOneConfig;
 import org.forgerock.openam.auth.service.marketplace.TNTPPingOneConfigChoiceValues;
-import org.forgerock.openam.auth.service.marketplace.TNTPPingOneUtility;
 import org.forgerock.openam.core.CoreWrapper;
 import org.forgerock.openam.core.realms.Realm;
 import org.forgerock.openam.http.HttpConstants;
@@ -68,10 +78,11 @@ import org.forgerock.openam.utils.JsonValueBuilder;
 import org.forgerock.services.context.RootContext;
 import org.forgerock.util.annotations.VisibleForTesting;
 import org.forgerock.util.i18n.PreferredLocales;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
 import com.google.common.base.Strings;
 import com.google.inject.assistedinject.Assisted;
 import com.iplanet.sso.SSOException;
@@ -79,6 +90,7 @@ import com.sun.identity.authentication.callbacks.HiddenValueCallback;
 import com.sun.identity.idm.AMIdentity;
 import com.sun.identity.idm.IdConstants;
 import com.sun.identity.idm.IdRepoException;
+import com.sun.identity.idm.IdType;
 
 /**
  * A node that integrate with PingOne Protect Evaluation, which calculate the
@@ -89,9 +101,9 @@ import com.sun.identity.idm.IdRepoException;
 public class PingOneProtectEvaluationNode extends SingleOutcomeNode {
 
 	public static final String REST_PINGONE_CLIENT_SECRET = "am.services.pingone.worker.%s.clientsecret";
-	protected static String endpoint = "https://api.pingone";
 	private static final Logger logger = LoggerFactory.getLogger(PingOneProtectEvaluationNode.class);
-	private String loggerPrefix = "[PingOneProtectEvaluationNode]" + PingOneProtectPlugin.logAppender;
+	private static final String loggerPrefix = "[PingOneProtectEvaluationNode]" + PingOneProtectPlugin.logAppender;
+	private static final PingOneProtectErrorReporter errors = new PingOneProtectErrorReporter(logger, loggerPrefix);
 
 	/**
 	 * State Key defined by this Node.
@@ -114,17 +126,28 @@ public class PingOneProtectEvaluationNode extends SingleOutcomeNode {
 		 * State variable name for storing the PingOne Worker ID.
 		 */
 		static final String PINGONE_PROTECT_WORKER = PingOneProtectEvaluationNode.class.getSimpleName() + ".worker";
+		/**
+		 * State variable name for storing the compact risk evaluation reference, in place of the risk evaluation id
+		 * and worker.
+		 */
+		static final String RISK_REFERENCE = PingOneProtectEvaluationNode.class.getSimpleName() + ".reference";
+		/**
+		 * State variable name for storing the nonce of the results prefetched while the client collects the
+		 * signals.
+		 */
+		static final String PREFETCH_NONCE = PingOneProtectEvaluationNode.class.getSimpleName() + ".prefetch";
+		/**
+		 * State variable name for storing the handle of a risk evaluation started asynchronously.
+		 */
+		static final String PENDING_EVALUATION = PingOneProtectEvaluationNode.class.getSimpleName() + ".pending";
 	}
 
-	private static final String RESULT = "result";
 	private static final String RECOMMENDED_ACTIONS = "recommendedActions";
-	private static final String RECOMMENDED_ACTION = "recommendedAction";
+	private static final String MAX_EVALUATION_LATENCY = "maxEvaluationLatency";
+	private static final String SCORE_BANDS = "scoreBands";
+	private static final String ASYNC_EVALUATION = "asyncEvaluation";
 
-	private static final String ID = "id";
-	private static final String LEVEL = "level";
-	private static final String HIGH = "HIGH";
-	private static final String MEDIUM = "MEDIUM";
-	private static final String LOW = "LOW";
+	private static final String JSON_CONTENT_TYPE = "application/json; charset=UTF-8";
 	/**
 	 * Audit attribute for risk evaluate id.
 	 */
@@ -136,12 +159,14 @@ public class PingOneProtectEvaluationNode extends SingleOutcomeNode {
 	@VisibleForTesting
 	static final String PINGONE_RISK_ENV_ID = "PINGONE_RISK_ENV_ID";
 	private final Config config;
+	private final EvaluationPlan plan;
 	private TNTPPingOneConfig tntpPingOneConfig;
 
 	private final LegacyIdentityService identityService;
 	private final CoreWrapper coreWrapper;
 
 	private final Realm realm;
+	private final PingOneProtectMetrics metrics;
 
 	// audit attributes
 	// private String riskEvaluateId;
@@ -282,6 +307,117 @@ public class PingOneProtectEvaluationNode extends SingleOutcomeNode {
 		default boolean useScript() {
 			return true;
 		}
+
+		/**
+		 * How long a risk evaluation result is reused for the same request fingerprint, in seconds.
+		 *
+		 * @return The time to live, 0 to always call PingOne
+		 */
+		@Attribute(order = 1400)
+		default int resultCacheTtl() {
+			return 0;
+		}
+
+		/**
+		 * The request attributes that identify a cached risk evaluation result.
+		 *
+		 * @return The fingerprint attributes
+		 */
+		@Attribute(order = 1500)
+		default Set<FingerprintField> resultCacheFingerprint() {
+			return EnumSet.allOf(FingerprintField.class);
+		}
+
+		/**
+		 * The outcome to take without calling PingOne while the circuit breaker is open.
+		 *
+		 * @return The circuit open outcome
+		 */
+		@Attribute(order = 1600)
+		default CircuitOpenOutcome circuitOpenOutcome() {
+			return CircuitOpenOutcome.ERROR;
+		}
+
+		/**
+		 * The maximum time for the token retrieval, user lookup and risk evaluation call, in milliseconds.
+		 *
+		 * @return The latency budget, 0 for no limit
+		 */
+		@Attribute(order = 1700)
+		default int maxEvaluationLatency() {
+			return 0;
+		}
+
+		/**
+		 * Send a second risk evaluation request when the first one is slower than usual.
+		 *
+		 * @return true to hedge requests
+		 */
+		@Attribute(order = 1800)
+		default boolean hedgeRequests() {
+			return false;
+		}
+
+		/**
+		 * Score bands, scoring higher than the bound of a band causes the outcome of the band.
+		 *
+		 * @return The score bounds mapped to the outcomes
+		 */
+		@Attribute(order = 1900)
+		default Map<String, String> scoreBands() {
+			return emptyMap();
+		}
+
+		/**
+		 * The fields of the risk evaluation result to store, as dotted paths.
+		 *
+		 * @return The fields to store, empty to store the whole result
+		 */
+		@Attribute(order = 2000)
+		default List<String> storeEvaluateResultFields() {
+			return emptyList();
+		}
+
+		/**
+		 * Store the risk evaluation id and worker in shared state in a single compact value.
+		 *
+		 * @return true to use the compact encoding
+		 */
+		@Attribute(order = 2100)
+		default boolean compactState() {
+			return false;
+		}
+
+		/**
+		 * Retrieve the access token and resolve the user while the client collects the signals.
+		 *
+		 * @return true to prefetch
+		 */
+		@Attribute(order = 2200)
+		default boolean prefetch() {
+			return false;
+		}
+
+		/**
+		 * Retrieve the access token concurrently with the user resolution and the request body preparation.
+		 *
+		 * @return true to run them concurrently
+		 */
+		@Attribute(order = 2300)
+		default boolean parallelPreparation() {
+			return false;
+		}
+
+		/**
+		 * Start the risk evaluation and continue the journey immediately, the outcome is taken later by a
+		 * {@link PingOneProtectAwaitResultNode}.
+		 *
+		 * @return true to evaluate asynchronously
+		 */
+		@Attribute(order = 2400)
+		default boolean asyncEvaluation() {
+			return false;
+		}
 	}
 
 	/**
@@ -297,10 +433,12 @@ public class PingOneProtectEvaluationNode extends SingleOutcomeNode {
 	public PingOneProtectEvaluationNode(@Assisted Config config, @Assisted Realm realm,
 			LegacyIdentityService identityService, CoreWrapper coreWrapper) {
 		this.config = config;
+		this.plan = EvaluationPlan.forConfig(config);
 		this.realm = realm;
 		this.identityService = identityService;
 		this.coreWrapper = coreWrapper;
-		this.tntpPingOneConfig = TNTPPingOneConfigChoiceValues.getTNTPPingOneConfig(config.tntpPingOneConfigName());
+		this.tntpPingOneConfig = PingOneProtectWorkerRegistry.getInstance().get(config.tntpPingOneConfigName());
+		this.metrics = PingOneProtectMetrics.forWorker(realm, config.tntpPingOneConfigName());
 	}
 
 	@Override
@@ -308,72 +446,216 @@ public class PingOneProtectEvaluationNode extends SingleOutcomeNode {
 
 		try {
 			if (context.hasCallbacks()) {
+				Deadline deadline = Deadline.after(config.maxEvaluationLatency());
 
 				String signals = getSignalsFromCallback(context);
 
 				if (callbackHasError(context)) {
-					return Action.goTo(ERROR).build();
+					return metrics.recordOutcome(Action.goTo(ERROR).build());
 				}
 
-				TNTPPingOneUtility tntpP1U = TNTPPingOneUtility.getInstance();
-				String accessToken = tntpP1U.getAccessToken(realm, tntpPingOneConfig);
-
+				return evaluateSignals(context, signals, deadline);
+			} else {
 				NodeState state = context.getStateFor(this);
+				JsonValue collected = state.get(PingOneProtectInitializeNode.COLLECTED_SIGNALS);
+				if (collected != null && collected.isString()) {
+					// Collected by the Initialize node in the same round trip, no callback needed.
+					state.remove(PingOneProtectInitializeNode.COLLECTED_SIGNALS);
+					return evaluateSignals(context, collected.asString(),
+							Deadline.after(config.maxEvaluationLatency()));
+				}
+				if (config.prefetch()) {
+					prefetch(context);
+				}
+				return getCallback();
+			}
+		} catch (Exception e) {
+			ErrorCode code = errors.report(context.getStateFor(this), e);
+			if (code == ErrorCode.TIMEOUT && config.maxEvaluationLatency() > 0) {
+				return metrics.recordOutcome(Action.goTo(TIMEOUT_OUTCOME_ID).build());
+			}
+			return metrics.recordOutcome(
+					Action.goTo(ERROR).withHeader("Error occurred").withErrorMessage(e.getMessage()).build());
+		}
+	}
 
-				JsonValue result = evaluate(accessToken, tntpPingOneConfig,
-						getRequestBody(context, state, signals));
+	/**
+	 * Evaluate the risk of the signals collected on the client, and decide the outcome.
+	 */
+	private Action evaluateSignals(TreeContext context, String signals, Deadline deadline) throws Exception {
+		NodeState state = context.getStateFor(this);
+		PingOneProtectPrefetch.Prefetched prefetched = takePrefetched(state);
+		PingOneProtectCircuitBreaker breaker = PingOneProtectCircuitBreaker.forWorker(tntpPingOneConfig);
+		CompletableFuture<String> token = null;
+		if (prefetched == null && config.parallelPreparation() && isClosed(breaker)) {
+			// The token does not depend on the user or the signals, retrieve it while they are prepared.
+			token = PingOneProtectFanOut.getInstance().submit(() -> PingOneProtectTokenManager.getInstance()
+					.getAccessToken(realm, tntpPingOneConfig, deadline));
+		}
+		Event.User user = prefetched == null ? null : prefetched.getUser(deadline);
+		if (user == null) {
+			user = prepareUser(userInputs(context, state));
+		}
+		deadline.check("user preparation");
+
+		String fingerprint = useResultCache() ? getFingerprint(context, user) : null;
+		RiskResult result = fingerprint == null ? null
+				: PingOneProtectResultCache.getInstance().get(fingerprint, config.storeEvaluateResult());
+		boolean cached = result != null;
+		if (result == null) {
+			PingOneProtectCircuitBreaker.Permit permit = breaker.tryAcquire();
+			if (permit == null) {
+				// Fail fast while PingOne is unavailable, before retrieving a token from it.
+				logger.debug("{}Circuit open, continue with outcome {}", loggerPrefix,
+						config.circuitOpenOutcome());
+				return metrics.recordOutcome(Action.goTo(config.circuitOpenOutcome().getOutcomeId()).build());
+			}
+			long tokenStart = System.nanoTime();
+			String accessToken;
+			byte[] body;
+			try {
+				accessToken = prefetched == null ? null : prefetched.getAccessToken(deadline);
+				if (accessToken == null && token != null) {
+					accessToken = PingOneProtectFanOut.join(token, deadline);
+				}
+				if (accessToken == null) {
+					accessToken = PingOneProtectTokenManager.getInstance().getAccessToken(realm,
+							tntpPingOneConfig, deadline);
+				}
+				metrics.recordToken(System.nanoTime() - tokenStart);
+				body = getRequestBody(context, user, signals);
+			} catch (Exception e) {
+				// The token endpoint is part of PingOne, and a half open circuit must get the outcome of its probe.
+				permit.onFailure(System.nanoTime() - tokenStart);
+				throw e;
+			}
+			if (config.asyncEvaluation()) {
+				String handle = UUID.randomUUID().toString();
+				String accessTokenValue = accessToken;
+				if (PingOneProtectPendingEvaluations.getInstance().start(handle,
+						() -> completed(callPingOne(accessTokenValue, body, deadline, permit, fingerprint), false))) {
+					state.putShared(PENDING_EVALUATION, handle);
+					return metrics.recordOutcome(Action.goTo(PENDING_OUTCOME_ID).build());
+				}
+				logger.debug("{}Asynchronous evaluation pool saturated, evaluating synchronously", loggerPrefix);
+			}
+			result = callPingOne(accessToken, body, deadline, permit, fingerprint);
+		}
 
-				// Put information to sharedState so that the PingOneProtectResult will update
-				// the risk result.
-				state.putShared(RISK_EVALUATE_ID, result.get(ID));
-				// state.putShared(PINGONE_PROTECT_WORKER, tntpPingOneConfig.id());
-				state.putShared(PINGONE_PROTECT_WORKER, config.tntpPingOneConfigName());
+		if (config.asyncEvaluation()) {
+			// Cached, or evaluated synchronously, the journey still continues to the await node. The id is stored
+			// right away, so that the evaluation is completed even if the journey does not reach the await node.
+			storeResult(state, result, config.tntpPingOneConfigName(), config.compactState(), false, cached);
+			String handle = UUID.randomUUID().toString();
+			PingOneProtectPendingEvaluations.getInstance().complete(handle, completed(result, cached));
+			state.putShared(PENDING_EVALUATION, handle);
+			return metrics.recordOutcome(Action.goTo(PENDING_OUTCOME_ID).build());
+		}
 
-				// Log Audit attribute
-				// riskEvaluateId = result.get(ID).asString();
-				// envId = tntpPingOneConfig.environmentId();
+		storeResult(state, result, config.tntpPingOneConfigName(), config.compactState(),
+				config.storeEvaluateResult(), cached);
 
-				// Store to transient state instead of sharedstate, putting to sharedstate will
-				// increase the size of
-				// authId token
-				if (config.storeEvaluateResult()) {
-					state.putTransient(RISK_EVALUATE_RESULT, result);
-				}
+		return metrics.recordOutcome(plan.decide(result));
+	}
 
-				// Score Threshold takes the highest precedence.
-				BigDecimal scoreLimit = new BigDecimal(config.scoreThreshold());
-				if (scoreLimit.compareTo(BigDecimal.ZERO) > 0 && result.get(RESULT).isDefined("score")) {
-					double score = result.get(RESULT).get("score").asDouble();
-					if (BigDecimal.valueOf(score).compareTo(scoreLimit) > 0) {
-						return Action.goTo(EXCEED_OUTCOME_ID).build();
-					}
-				}
+	/**
+	 * Call PingOne through the circuit breaker, and cache the result when the result cache is enabled.
+	 */
+	private RiskResult callPingOne(String accessToken, byte[] body, Deadline deadline,
+			PingOneProtectCircuitBreaker.Permit permit, String fingerprint) throws Exception {
+		RiskResult result;
+		long start = System.nanoTime();
+		try {
+			result = evaluate(accessToken, tntpPingOneConfig, body, deadline,
+					config.storeEvaluateResult() ? plan.projection() : null);
+			permit.onSuccess(System.nanoTime() - start);
+		} catch (Exception e) {
+			permit.onFailure(System.nanoTime() - start);
+			throw e;
+		}
+		if (fingerprint != null) {
+			PingOneProtectResultCache.getInstance().put(fingerprint,
+					config.storeEvaluateResult() ? result : result.withoutResponse(), config.resultCacheTtl());
+		}
+		return result;
+	}
 
-				// If the recommended Action outcome is not defined, fallback to level
-				if (result.get(RESULT).isDefined(RECOMMENDED_ACTION)) {
-					String advice = result.get(RESULT).get(RECOMMENDED_ACTION).asString();
-					if (config.recommendedActions().contains(advice)) {
-						return Action.goTo(advice).build();
-					}
-					logger.warn("Outcome not found for recommended action {}", advice);
-				}
+	/**
+	 * Decide the outcome of a result for the {@link PingOneProtectAwaitResultNode}.
+	 */
+	private PingOneProtectPendingEvaluations.Completed completed(RiskResult result, boolean cached) {
+		return new PingOneProtectPendingEvaluations.Completed(result, plan.decide(result).outcome, realm,
+				config.tntpPingOneConfigName(), tntpPingOneConfig, config.compactState(), config.storeEvaluateResult(),
+				cached);
+	}
 
-				if (result.get(RESULT).isDefined(LEVEL)) {
-					return getAction(result.get(RESULT).get(LEVEL).asString());
-				}
+	/**
+	 * Put the risk evaluation id and worker to shared state, so that the PingOneProtectResult will update the risk
+	 * result, and the result to transient state when it is stored.
+	 * <p>
+	 * A cached result belongs to the evaluation of another journey, which completes it. Its id is not stored, so that
+	 * the PingOneProtectResult does not update that evaluation a second time.
+	 * </p>
+	 *
+	 * @param state               The node state
+	 * @param result              The risk result
+	 * @param workerName          The name of the PingOne worker configuration
+	 * @param compactState        true to store the id and worker as a single {@link RiskReference}
+	 * @param storeEvaluateResult true to store the result
+	 * @param cached              true if the result was taken from the result cache
+	 */
+	static void storeResult(NodeState state, RiskResult result, String workerName, boolean compactState,
+			boolean storeEvaluateResult, boolean cached) {
+		if (cached) {
+			// Drop the id of an earlier evaluation in the same journey, it has already been completed.
+			state.remove(RISK_REFERENCE);
+			state.remove(RISK_EVALUATE_ID);
+			state.remove(PINGONE_PROTECT_WORKER);
+		} else if (compactState) {
+			state.putShared(RISK_REFERENCE, RiskReference.encode(result.getId(), workerName));
+		} else {
+			state.putShared(RISK_EVALUATE_ID, result.getId());
+			state.putShared(PINGONE_PROTECT_WORKER, workerName);
+		}
 
-				throw new IllegalArgumentException("Evaluation result is invalid" + result);
-			} else {
-				return getCallback();
-			}
-		} catch (Exception e) {
-			String stackTrace = org.apache.commons.lang.exception.ExceptionUtils.getStackTrace(e);
+		// Store to transient state instead of sharedstate, putting to sharedstate will increase the size of
+		// authId token
+		if (storeEvaluateResult) {
+			state.putTransient(RISK_EVALUATE_RESULT, result.getResponse());
+		}
+	}
 
-			logger.error(loggerPrefix + "Exception occurred: " + stackTrace);
-			context.getStateFor(this).putTransient(loggerPrefix + "Exception", new Date() + ": " + e.getMessage());
-			context.getStateFor(this).putTransient(loggerPrefix + "StackTrace", new Date() + ": " + stackTrace);
-			return Action.goTo(ERROR).withHeader("Error occurred").withErrorMessage(e.getMessage()).build();
+	/**
+	 * Start resolving the access token and the user, to be picked up when the callbacks come back. The tree
+	 * context and the node state belong to the request thread, so the state the user is resolved from is copied
+	 * before the background work starts.
+	 */
+	private void prefetch(TreeContext context) {
+		NodeState state = context.getStateFor(this);
+		UserInputs inputs = userInputs(context, state);
+		String nonce = UUID.randomUUID().toString();
+		state.putShared(PREFETCH_NONCE, nonce);
+		boolean closed = isClosed(PingOneProtectCircuitBreaker.forWorker(tntpPingOneConfig));
+		PingOneProtectPrefetch.getInstance().start(nonce,
+				() -> closed ? PingOneProtectTokenManager.getInstance().getAccessToken(realm, tntpPingOneConfig)
+						: null,
+				() -> prepareUser(inputs));
+	}
+
+	/**
+	 * Whether the access token can be retrieved ahead of the circuit breaker check, i.e. PingOne is not failing.
+	 */
+	private static boolean isClosed(PingOneProtectCircuitBreaker breaker) {
+		return breaker.state() == PingOneProtectCircuitBreaker.State.CLOSED;
+	}
+
+	private PingOneProtectPrefetch.Prefetched takePrefetched(NodeState state) {
+		JsonValue nonce = state.get(PREFETCH_NONCE);
+		if (nonce == null || !nonce.isString()) {
+			return null;
 		}
+		state.remove(PREFETCH_NONCE);
+		return PingOneProtectPrefetch.getInstance().take(nonce.asString());
 	}
 
 	private String getSignalsFromCallback(TreeContext context) {
@@ -396,12 +678,15 @@ public class PingOneProtectEvaluationNode extends SingleOutcomeNode {
 	private boolean callbackHasError(TreeContext context) {
 		AtomicBoolean hasError = new AtomicBoolean(false);
 		if (config.useScript()) {
-			HiddenValueCallback clientErrorCallback = context.getCallback(HiddenValueCallback.class).get();
-			Optional<String> clientError = Optional.ofNullable(clientErrorCallback.getValue());
-			if (clientError.isPresent()) {
-				logClientError(context, clientError.get());
-				hasError.set(true);
-			}
+			context.getCallbacks(HiddenValueCallback.class).stream()
+					.filter(callback -> callback.getId().equals("clientError"))
+					.map(HiddenValueCallback::getValue)
+					.filter(clientError -> !Strings.isNullOrEmpty(clientError))
+					.findFirst()
+					.ifPresent(clientError -> {
+						logClientError(context, clientError);
+						hasError.set(true);
+					});
 		} else {
 			context.getCallbacks(HiddenValueCallback.class).forEach(callback -> {
 				if (callback.getId().equals("clientError")) {
@@ -417,81 +702,83 @@ public class PingOneProtectEvaluationNode extends SingleOutcomeNode {
 	}
 
 	private void logClientError(TreeContext context, String clientError) {
-		logger.error("{}Client error: {}", loggerPrefix, clientError);
-		context.getStateFor(this).putTransient(loggerPrefix + "ClientError", new Date() + ": " + clientError);
+		errors.reportClientError(context.getStateFor(this), clientError);
 	}
 
 
-	private Action getAction(String result) throws Exception {
-		switch (result) {
-		case HIGH: {
-			return Action.goTo(HIGH_OUTCOME_ID).build();
-		}
-		case MEDIUM: {
-			return Action.goTo(MEDIUM_OUTCOME_ID).build();
-		}
-		case LOW: {
-			return Action.goTo(LOW_OUTCOME_ID).build();
+	/**
+	 * Whether risk results are cached. The user must be part of the fingerprint, so that the result of one user is
+	 * never reused for another.
+	 */
+	private boolean useResultCache() {
+		if (config.resultCacheTtl() <= 0) {
+			return false;
 		}
-		default:
-			throw new IllegalStateException("Unexpected level value: " + result);
+		if (!config.resultCacheFingerprint().contains(FingerprintField.USER_ID)) {
+			logger.debug("{}Result cache not used, the fingerprint does not include the user ID", loggerPrefix);
+			return false;
 		}
+		return true;
 	}
 
-	private JsonValue getRequestBody(TreeContext context, NodeState state, String signals)
-			throws JsonProcessingException {
-
-		Event.Root root = new Event.Root();
-		Event event = new Event();
-		if (config.targetResourceID().isPresent()) {
-			Event.TargetResource targetResource = new Event.TargetResource(config.targetResourceID().get());
-			event.setTargetResource(targetResource);
-		}
-		event.setIp(context.request.clientIp);
-		event.setFlow(new Event.Flow(config.flowType().name()));
-		event.setUser(prepareUser(context, state));
-		if (StringUtils.isNotEmpty(signals)) {
-			event.setSdk(new Event.Sdk(new Event.Signals(signals)));
-		}
-		event.setSharingType(config.deviceSharingType().name());
+	/**
+	 * The request fingerprint used to look up a cached risk result. The environment and target application are
+	 * always part of the fingerprint, the other request attributes are configurable.
+	 */
+	private String getFingerprint(TreeContext context, Event.User user) {
+		Set<FingerprintField> fields = config.resultCacheFingerprint();
 		List<String> userAgents = context.request.headers.get("User-Agent");
-		if (userAgents != null && !userAgents.isEmpty()) {
-			event.setBrowser(new Event.Browser(userAgents.get(0)));
-		}
+		return PingOneProtectResultCache.fingerprint(
+				tntpPingOneConfig.environmentId(),
+				config.targetResourceID().orElse(null),
+				fields.contains(FingerprintField.USER_ID) ? user.getId() : null,
+				fields.contains(FingerprintField.IP) ? context.request.clientIp : null,
+				fields.contains(FingerprintField.USER_AGENT) && userAgents != null && !userAgents.isEmpty()
+						? userAgents.get(0) : null,
+				fields.contains(FingerprintField.FLOW_TYPE) ? config.flowType().name() : null,
+				fields.contains(FingerprintField.POLICY_SET) ? config.riskPolicySetID().orElse(null) : null,
+				// Results stored with another projection cannot be reused.
+				String.join(",", plan.projection()));
+	}
 
-		root.setEvent(event);
+	private byte[] getRequestBody(TreeContext context, Event.User user, String signals) throws IOException {
+		List<String> userAgents = context.request.headers.get("User-Agent");
+		String userAgent = userAgents != null && !userAgents.isEmpty() ? userAgents.get(0) : null;
+		return plan.encoder().encode(context.request.clientIp, signals, userAgent, user.getId(), user.getName());
+	}
 
-		if (config.riskPolicySetID().isPresent()) {
-			root.setRiskPolicySet(new Event.RiskPolicySet(config.riskPolicySetID().get()));
-		}
+	private UserInputs userInputs(TreeContext context, NodeState state) {
+		return new UserInputs(context.universalId.orElse(null), stringValue(state, USERNAME),
+				stringValue(state, REALM), config.userId().map(key -> stringValue(state, key)).orElse(null),
+				config.username().map(key -> stringValue(state, key)).orElse(null));
+	}
 
-		return JsonValueBuilder.toJsonValue(JsonValueBuilder.getObjectMapper().writeValueAsString(root));
+	private static String stringValue(NodeState state, String key) {
+		JsonValue value = state.get(key);
+		return value == null || value.isNull() ? null : value.asString();
 	}
 
-	private Event.User prepareUser(TreeContext context, NodeState state) {
+	/**
+	 * Prepare the user from the copied state only, so that it can be prepared away from the request thread.
+	 */
+	private Event.User prepareUser(UserInputs inputs) {
 
 		Event.User user = null;
-		String userId = null;
-		String username = null;
+		String userId;
+		String username;
 
 		if (config.userId().isPresent()) {
-			JsonValue value = state.get(config.userId().get());
-			if (value != null) {
-				userId = value.asString();
-			}
+			userId = inputs.userId;
 		} else {
-			user = getAMIdentityUser(context, state);
+			user = getAMIdentityUser(inputs);
 			userId = user.getId();
 		}
 
 		if (config.username().isPresent()) {
-			JsonValue value = state.get(config.username().get());
-			if (value != null) {
-				username = value.asString();
-			}
+			username = inputs.username;
 		} else {
 			if (user == null) {
-				user = getAMIdentityUser(context, state);
+				user = getAMIdentityUser(inputs);
 			}
 			username = user.getName();
 		}
@@ -500,20 +787,53 @@ public class PingOneProtectEvaluationNode extends SingleOutcomeNode {
 
 	}
 
-	private Event.User getAMIdentityUser(TreeContext context, NodeState state) {
-		Optional<AMIdentity> user = getAMIdentity(context.universalId, state, identityService, coreWrapper);
+	private Event.User getAMIdentityUser(UserInputs inputs) {
+		PingOneProtectIdentityCache identityCache = PingOneProtectIdentityCache.getInstance();
+		if (identityCache.isEnabled() && inputs.universalId != null) {
+			PingOneProtectIdentityCache.CachedUser cached = identityCache.get(inputs.universalId);
+			if (cached != null) {
+				return new Event.User(cached.getId(), cached.getUsername(), config.userType().name());
+			}
+		}
+		long start = System.nanoTime();
+		try {
+			return lookupAMIdentityUser(inputs, findIdentity(inputs), identityCache);
+		} finally {
+			metrics.recordIdentityLookup(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Find the identity of the user from the copied state, the same way as the AM identity helper: from the
+	 * universal id, or else from the username in the realm of the journey.
+	 */
+	private Optional<AMIdentity> findIdentity(UserInputs inputs) {
+		try {
+			String universalId = inputs.universalId;
+			if (universalId == null && inputs.sharedUsername != null) {
+				universalId = identityService.getUniversalId(inputs.sharedUsername,
+						inputs.realm != null ? inputs.realm : realm.asPath(), IdType.USER);
+			}
+			if (universalId != null) {
+				return Optional.ofNullable(coreWrapper.getIdentity(universalId));
+			}
+		} catch (IdRepoException e) {
+			logger.warn("{}Unable to find identity '{}'", loggerPrefix, inputs.universalId, e);
+		}
+		return Optional.empty();
+	}
+
+	private Event.User lookupAMIdentityUser(UserInputs inputs, Optional<AMIdentity> user,
+			PingOneProtectIdentityCache identityCache) {
 		if (user.isEmpty()) {
-			String username = state.isDefined(USERNAME) ? state.get(USERNAME).asString() : null;
-			return new Event.User(context.universalId.orElse(null), username, config.userType().name());
+			return new Event.User(inputs.universalId, inputs.sharedUsername, config.userType().name());
 		} else {
 			AMIdentity identity = user.get();
 			String username = identity.getName();
 			try {
-				Set<String> usernameAttributeValue = identity.getAttribute(IdConstants.USERNAME);
-				if (usernameAttributeValue.isEmpty()) {
-					identity.getAttributes(); // Refresh the cache
-					usernameAttributeValue = identity.getAttribute(IdConstants.USERNAME);
-				}
+				// Only read the username attribute, not the whole user entry.
+				Map<String, Set<String>> attributes = identity.getAttributes(singleton(IdConstants.USERNAME));
+				Set<String> usernameAttributeValue = attributes == null ? null : attributes.get(IdConstants.USERNAME);
 				if (CollectionUtils.isNotEmpty(usernameAttributeValue)) {
 					username = usernameAttributeValue.iterator().next();
 				}
@@ -521,19 +841,42 @@ public class PingOneProtectEvaluationNode extends SingleOutcomeNode {
 				logger.warn("Unable to get username attribute for identity '{}', returning username for Account Name",
 						identity.getName(), e);
 			}
-			return new Event.User(user.get().getUniversalId(), username, config.userType().name());
+			if (identityCache.isEnabled()) {
+				identityCache.put(realm, inputs.universalId != null ? inputs.universalId : identity.getUniversalId(),
+						identity.getUniversalId(), username);
+			}
+			return new Event.User(identity.getUniversalId(), username, config.userType().name());
 		}
 	}
 
-	private Action getCallback() throws Exception {
+	/**
+	 * The state the user is prepared from, copied on the request thread.
+	 */
+	private static final class UserInputs {
+		private final String universalId;
+		private final String sharedUsername;
+		private final String realm;
+		private final String userId;
+		private final String username;
+
+		private UserInputs(String universalId, String sharedUsername, String realm, String userId,
+				String username) {
+			this.universalId = universalId;
+			this.sharedUsername = sharedUsername;
+			this.realm = realm;
+			this.userId = userId;
+			this.username = username;
+		}
+	}
 
-		String clientScript = ScriptHelper.readJS(ScriptHelper.sdkJsPathSigTemplate);
+	private Action getCallback() throws Exception {
 
 		List<Callback> callbacks = new ArrayList<>();
 
 		if (config.useScript()) {
-			callbacks.add(ScriptHelper.getSigCallback(clientScript));
+			callbacks.add(ScriptHelper.getSigCallback(ScriptHelper.sdkJsPathSigTemplate));
 			callbacks.add(new HiddenValueCallback("clientScriptOutputData"));
+			callbacks.add(new HiddenValueCallback("clientError"));
 		} else {
 			JsonValue callbackData = JsonValue.json(JsonValue.object());
 			callbackData.put("_type", "PingOneProtect");
@@ -573,6 +916,18 @@ public class PingOneProtectEvaluationNode extends SingleOutcomeNode {
 		@VisibleForTesting
 		static final String EXCEED_OUTCOME_ID = "exceed";
 
+		/**
+		 * Latency budget exceeded outcome.
+		 */
+		@VisibleForTesting
+		static final String TIMEOUT_OUTCOME_ID = "timeout";
+
+		/**
+		 * Risk evaluation started asynchronously outcome.
+		 */
+		@VisibleForTesting
+		static final String PENDING_OUTCOME_ID = "pending";
+
 		/**
 		 * Client Error outcome.
 		 */
@@ -596,6 +951,16 @@ public class PingOneProtectEvaluationNode extends SingleOutcomeNode {
 				// nodeAttributes is null when the node is created
 				nodeAttributes.get(RECOMMENDED_ACTIONS).required().asList(String.class).stream()
 						.map(outcome -> new Outcome(outcome, outcome)).forEach(outcomes::add);
+				nodeAttributes.get(SCORE_BANDS).defaultTo(emptyMap()).asMap(String.class).values().stream()
+						.map(String::trim).distinct()
+						.filter(outcome -> outcomes.stream().noneMatch(o -> o.id.equals(outcome)))
+						.map(outcome -> new Outcome(outcome, outcome)).forEach(outcomes::add);
+				if (nodeAttributes.get(MAX_EVALUATION_LATENCY).defaultTo(0).asInteger() > 0) {
+					outcomes.add(new Outcome(TIMEOUT_OUTCOME_ID, bundle.getString(TIMEOUT_OUTCOME_ID)));
+				}
+				if (nodeAttributes.get(ASYNC_EVALUATION).defaultTo(false).asBoolean()) {
+					outcomes.add(new Outcome(PENDING_OUTCOME_ID, bundle.getString(PENDING_OUTCOME_ID)));
+				}
 			}
 			outcomes.add(new Outcome(ERROR, bundle.getString(ERROR)));
 
@@ -641,34 +1006,89 @@ public class PingOneProtectEvaluationNode extends SingleOutcomeNode {
 	 * @throws Exception When API response != 201
 	 */
 	public JsonValue evaluate(String accessToken, TNTPPingOneConfig worker, JsonValue body) throws Exception {
-		Request request = null;
-		HttpClientHandler handler = null;
+		return evaluate(accessToken, worker, JsonValueBuilder.getObjectMapper().writeValueAsBytes(body.getObject()),
+				Deadline.none(), emptySet()).getResponse();
+	}
+
+	/**
+	 * Create a risk evaluation, giving up when the deadline passes.
+	 *
+	 * @param accessToken The {@link AccessToken} from
+	 * @param worker      The worker
+	 * @param body        The UTF-8 encoded JSON request body
+	 * @param deadline    The deadline of the risk evaluation
+	 * @param projection  The fields of the response to keep in the result, empty to keep the whole response,
+	 *                    null to keep none. Only the kept fields and the fields that drive the outcome are read
+	 *                    from the response stream
+	 * @return The risk result from /environments/{{envID}}/riskEvaluations operation
+	 * @throws TimeoutException When there is no response before the deadline
+	 * @throws Exception        When API response != 201
+	 */
+	RiskResult evaluate(String accessToken, TNTPPingOneConfig worker, byte[] body, Deadline deadline,
+			Set<String> projection) throws Exception {
+		List<Request> requests = new ArrayList<>();
+		Response response = null;
+		Promise<Response, NeverThrowsException> promise = null;
+		long start = System.nanoTime();
 		try {
-			handler = new HttpClientHandler();
-			URI uri = URI.create(endpoint + worker.environmentRegion().getDomainSuffix() + "/v1/environments/" + worker.environmentId()
+			HttpClientHandler handler = PingOneProtectHttpClient.handlerFor(worker);
+			URI uri = URI.create(PingOneProtectHttpClient.baseUrl(worker) + "/v1/environments/" + worker.environmentId()
 					+ "/riskEvaluations");
-			request = new Request().setUri(uri).setMethod(HttpConstants.Methods.POST);
-			request.getEntity().setJson(body);
-			addAuthorizationHeader(request, accessToken);
-			Response response = handler.handle(new RootContext(), request).getOrThrow();
+			Callable<Request> newRequest = () -> {
+				Request request = new Request().setUri(uri).setMethod(HttpConstants.Methods.POST);
+				requests.add(request);
+				request.getEntity().setBytes(body);
+				request.getHeaders().put(ContentTypeHeader.NAME, JSON_CONTENT_TYPE);
+				addAuthorizationHeader(request, accessToken);
+				return request;
+			};
+			deadline.check("risk evaluation request");
+			if (config.hedgeRequests()) {
+				response = PingOneProtectHedging.forWorker(worker).send(handler, newRequest, deadline);
+			} else {
+				promise = handler.handle(new RootContext(), newRequest.call());
+				// The remaining budget bounds the connect and read time of this request.
+				response = deadline.isBounded()
+						? promise.getOrThrow(deadline.remainingMillis(), TimeUnit.MILLISECONDS)
+						: promise.getOrThrow();
+			}
+			metrics.recordStatus(response.getStatus().getCode());
+			metrics.recordRequestSize(body.length);
+			metrics.recordResponseSize(contentLength(response));
 			if (response.getStatus() == Status.CREATED) {
-				return json(response.getEntity().getJson());
+				if (projection != null && projection.isEmpty()) {
+					return RiskResult.of(json(response.getEntity().getJson()));
+				}
+				try (InputStream in = response.getEntity().newDecodedContentInputStream()) {
+					return RiskResult.parse(in, projection == null ? emptySet() : projection);
+				}
 			} else {
-				throw new Exception("PingOne Create Risk Evaluation API response with error." + response.getStatus()
-						+ "-" + response.getEntity().getString());
+				throw new PingOneApiException("PingOne Create Risk Evaluation API response with error."
+						+ response.getStatus() + "-" + response.getEntity().getString(), response.getStatus().getCode(),
+						response.getCause());
+			}
+		} catch (TimeoutException e) {
+			if (promise != null) {
+				promise.cancel(true);
 			}
+			throw e;
 		} catch (Exception e) {
 			throw new Exception("Failed to create risk evaluation", e);
 		} finally {
-			if (handler != null) {
+			metrics.recordEvaluate(System.nanoTime() - start);
+			if (response == null) {
+				metrics.recordStatus(0);
+			}
+			// Release the pooled connection, the handler itself is shared and closed on plugin shutdown.
+			if (response != null) {
 				try {
-					handler.close();
+					response.close();
 				} catch (Exception e) {
 					// DO NOTHING
 				}
 			}
 
-			if (request != null) {
+			for (Request request : requests) {
 				try {
 					request.close();
 				} catch (Exception e) {
@@ -678,7 +1098,24 @@ public class PingOneProtectEvaluationNode extends SingleOutcomeNode {
 		}
 	}
 
-	private void addAuthorizationHeader(Request request, String accessToken) throws MalformedHeaderException {
+	/**
+	 * Read the declared length of a response, without buffering the entity.
+	 *
+	 * @return The length in bytes, or -1 when it is not declared
+	 */
+	static long contentLength(Response response) {
+		String value = response.getHeaders().getFirst(ContentLengthHeader.NAME);
+		if (value == null) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static void addAuthorizationHeader(Request request, String accessToken) throws MalformedHeaderException {
 		AuthorizationHeader header = new AuthorizationHeader();
 		BearerToken bearerToken = new BearerToken(accessToken);
 		header.setRawValue(BearerToken.NAME + " " + bearerToken);
@@ -0,0 +1,175 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.pingone;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.iplanet.am.util.SystemProperties;
+
+/**
+ * Runs the independent steps of a risk evaluation concurrently with the AM request thread.
+ * <p>
+ * Steps run on a bounded pool. When the pool is saturated a step runs on the calling thread instead, so that
+ * journeys never wait in a queue behind each other. Once the plugin has shut down, every step runs on the calling
+ * thread. On Java 21 and later the steps can run on virtual threads instead, see {@link #VIRTUAL_THREADS}.
+ * </p>
+ */
+final class PingOneProtectFanOut {
+
+	private static final Logger logger = LoggerFactory.getLogger(PingOneProtectFanOut.class);
+	private static final String loggerPrefix = "[PingOneProtectFanOut]" + PingOneProtectPlugin.logAppender;
+
+	static final String PROPERTY_PREFIX = "org.forgerock.am.marketplace.pingone.fanOut.";
+	static final String CONCURRENCY = PROPERTY_PREFIX + "concurrency";
+	/**
+	 * Run the steps on virtual threads when the JVM supports them.
+	 */
+	static final String VIRTUAL_THREADS = PROPERTY_PREFIX + "virtualThreads";
+
+	private static final PingOneProtectFanOut INSTANCE = new PingOneProtectFanOut();
+
+	private final LongAdder inline = new LongAdder();
+	private ExecutorService executor;
+	private boolean stopped;
+
+	private PingOneProtectFanOut() {
+	}
+
+	/**
+	 * Get the fan-out instance.
+	 *
+	 * @return The fan-out
+	 */
+	static PingOneProtectFanOut getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Start a step.
+	 *
+	 * @param step The step
+	 * @param <T>  The type of the step result
+	 * @return The result of the step
+	 */
+	<T> CompletableFuture<T> submit(Callable<T> step) {
+		CompletableFuture<T> future = new CompletableFuture<>();
+		Runnable task = () -> {
+			try {
+				future.complete(step.call());
+			} catch (Throwable e) {
+				future.completeExceptionally(e);
+			}
+		};
+		try {
+			executor().execute(task);
+		} catch (RejectedExecutionException e) {
+			inline.increment();
+			task.run();
+		}
+		return future;
+	}
+
+	/**
+	 * Wait for the result of a step, until the deadline.
+	 *
+	 * @param future   The step result
+	 * @param deadline The deadline of the risk evaluation
+	 * @param <T>      The type of the step result
+	 * @return The result
+	 * @throws Exception The failure of the step, or a {@link java.util.concurrent.TimeoutException} when the
+	 *                   deadline passes
+	 */
+	static <T> T join(CompletableFuture<T> future, Deadline deadline) throws Exception {
+		try {
+			return deadline.isBounded()
+					? future.get(deadline.remainingMillis(), TimeUnit.MILLISECONDS)
+					: future.get();
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+		}
+	}
+
+	/**
+	 * Number of steps run on the calling thread because the pool was saturated or shut down.
+	 *
+	 * @return The inline count
+	 */
+	long inline() {
+		return inline.sum();
+	}
+
+	/**
+	 * Run the steps on the pool again after a shutdown. Called when the plugin starts.
+	 */
+	synchronized void start() {
+		stopped = false;
+	}
+
+	/**
+	 * Stop the threads. Called when the plugin shuts down, the steps submitted afterwards run on the calling
+	 * thread.
+	 */
+	synchronized void shutdown() {
+		stopped = true;
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+	}
+
+	private synchronized ExecutorService executor() {
+		if (stopped) {
+			throw new RejectedExecutionException("Fan-out is shut down");
+		}
+		if (executor == null) {
+			if (SystemProperties.getAsBoolean(VIRTUAL_THREADS, false)) {
+				executor = virtualThreadExecutor();
+			}
+			if (executor == null) {
+				int concurrency = Math.max(SystemProperties.getAsInt(CONCURRENCY, 16), 1);
+				ThreadPoolExecutor pool = new ThreadPoolExecutor(concurrency, concurrency, 60, TimeUnit.SECONDS,
+						new ArrayBlockingQueue<>(concurrency),
+						new ThreadFactoryBuilder().setNameFormat("PingOneProtect-fanout-%d").setDaemon(true).build());
+				pool.allowCoreThreadTimeOut(true);
+				executor = pool;
+			}
+		}
+		return executor;
+	}
+
+	/**
+	 * Create a virtual thread per task executor, looked up reflectively so that the plugin still runs on Java 11.
+	 *
+	 * @return The executor, or null if the JVM has no virtual threads
+	 */
+	private static ExecutorService virtualThreadExecutor() {
+		try {
+			ExecutorService executor = (ExecutorService) Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			logger.debug("{}Using virtual threads", loggerPrefix);
+			return executor;
+		} catch (ReflectiveOperationException e) {
+			logger.warn("{}Virtual threads are not available on this JVM, using a thread pool", loggerPrefix);
+			return null;
+		}
+	}
+}
@@ -0,0 +1,255 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.pingone;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.openam.auth.service.marketplace.TNTPPingOneConfig;
+import org.forgerock.services.context.RootContext;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+
+import com.iplanet.am.util.SystemProperties;
+
+/**
+ * Hedged risk evaluation requests for a worker.
+ * <p>
+ * When the response to a request has not arrived after a delay taken from a percentile of the recent response
+ * times, an identical request is sent on another pooled connection. The first successful response is used, the
+ * other request is cancelled. Hedges are limited to a share of the requests, so that a general slow down of PingOne
+ * does not double the load.
+ * </p>
+ * <p>
+ * The hedge delay follows the response times of the first request only. When the hedge answers first, the time
+ * waited until then is recorded, as the first request would have taken at least as long.
+ * </p>
+ * <p>
+ * Each successful response creates a risk evaluation in PingOne. A response that is not used, because the other
+ * request answered first or the deadline passed, is closed and counted, its evaluation is not completed.
+ * </p>
+ */
+final class PingOneProtectHedging {
+
+	static final String PROPERTY_PREFIX = "org.forgerock.am.marketplace.pingone.hedging.";
+	static final String PERCENTILE = PROPERTY_PREFIX + "percentile";
+	static final String MIN_DELAY = PROPERTY_PREFIX + "minDelayMillis";
+	static final String MAX_RATIO = PROPERTY_PREFIX + "maxHedgePercent";
+
+	/**
+	 * Number of hedges that can be sent in a burst.
+	 */
+	private static final long MAX_BURST = 10;
+	/**
+	 * Budget unit, one hedge costs this many credits.
+	 */
+	private static final long HEDGE_COST = 100;
+
+	private static final ConcurrentMap<String, PingOneProtectHedging> hedgings = new ConcurrentHashMap<>();
+
+	private final LatencyHistogram latencies = new LatencyHistogram(10000);
+	private final AtomicLong credits = new AtomicLong(HEDGE_COST);
+	private final LongAdder requests = new LongAdder();
+	private final LongAdder hedges = new LongAdder();
+	private final LongAdder hedgeWins = new LongAdder();
+	private final LongAdder unused = new LongAdder();
+	private final double percentile;
+	private final long minDelay;
+	private final long creditsPerRequest;
+
+	private PingOneProtectHedging() {
+		this.percentile = SystemProperties.getAsInt(PERCENTILE, 95);
+		this.minDelay = SystemProperties.getAsInt(MIN_DELAY, 50);
+		this.creditsPerRequest = SystemProperties.getAsInt(MAX_RATIO, 5);
+	}
+
+	/**
+	 * Get the hedging state of a worker.
+	 *
+	 * @param worker The PingOne worker configuration
+	 * @return The hedging state
+	 */
+	static PingOneProtectHedging forWorker(TNTPPingOneConfig worker) {
+		return hedgings.computeIfAbsent(worker.id(), id -> new PingOneProtectHedging());
+	}
+
+	/**
+	 * Send a request, and a hedge request when the response is late.
+	 *
+	 * @param handler  The HTTP client
+	 * @param requests Creates a new copy of the request
+	 * @param deadline The deadline of the risk evaluation
+	 * @return The response, to be closed by the caller
+	 * @throws TimeoutException When there is no response before the deadline
+	 * @throws Exception        When the request cannot be created
+	 */
+	Response send(Handler handler, Callable<Request> requests, Deadline deadline) throws Exception {
+		this.requests.increment();
+		credits.getAndUpdate(value -> Math.min(value + creditsPerRequest, MAX_BURST * HEDGE_COST));
+		long start = System.nanoTime();
+		Promise<Response, NeverThrowsException> primary = handler.handle(new RootContext(), requests.call());
+		try {
+			Response response = primary.getOrThrow(Math.min(delayMillis(), deadline.remainingMillis()),
+					TimeUnit.MILLISECONDS);
+			latencies.record(System.nanoTime() - start);
+			return response;
+		} catch (TimeoutException e) {
+			if (deadline.remainingMillis() == 0) {
+				primary.cancel(true);
+				throw e;
+			}
+		}
+		if (!tryAcquireHedge()) {
+			Response response = await(primary, deadline);
+			latencies.record(System.nanoTime() - start);
+			return response;
+		}
+		hedges.increment();
+		// Only the first request is timed, when it does not answer first the time waited for it is recorded.
+		AtomicBoolean timed = new AtomicBoolean(false);
+		primary.thenOnResult(result -> recordOnce(timed, start));
+		Promise<Response, NeverThrowsException> hedge = handler.handle(new RootContext(), requests.call());
+		CompletableFuture<Promise<Response, NeverThrowsException>> winner = new CompletableFuture<>();
+		CompletableFuture<Response> response = new CompletableFuture<>();
+		AtomicInteger pending = new AtomicInteger(2);
+		race(primary, pending, winner, response, unused);
+		race(hedge, pending, winner, response, unused);
+		try {
+			Response result = deadline.isBounded()
+					? response.get(deadline.remainingMillis(), TimeUnit.MILLISECONDS)
+					: response.get();
+			if (winner.getNow(null) == hedge) {
+				hedgeWins.increment();
+				recordOnce(timed, start);
+				primary.cancel(true);
+			} else {
+				hedge.cancel(true);
+			}
+			return result;
+		} catch (TimeoutException e) {
+			recordOnce(timed, start);
+			primary.cancel(true);
+			hedge.cancel(true);
+			// A response arriving after the deadline is not used either.
+			response.thenAccept(late -> release(late, unused));
+			throw e;
+		}
+	}
+
+	/**
+	 * Number of requests sent through hedging.
+	 *
+	 * @return The request count
+	 */
+	long requests() {
+		return requests.sum();
+	}
+
+	/**
+	 * Number of hedge requests sent.
+	 *
+	 * @return The hedge count
+	 */
+	long hedges() {
+		return hedges.sum();
+	}
+
+	/**
+	 * Number of hedge requests that answered first.
+	 *
+	 * @return The hedge win count
+	 */
+	long hedgeWins() {
+		return hedgeWins.sum();
+	}
+
+	/**
+	 * Number of responses that were not used, because the other request answered first or the deadline passed.
+	 *
+	 * @return The unused response count
+	 */
+	long unused() {
+		return unused.sum();
+	}
+
+	/**
+	 * The current hedge delay.
+	 *
+	 * @return The delay in milliseconds
+	 */
+	long delayMillis() {
+		long micros = latencies.percentileMicros(percentile);
+		return Math.max(TimeUnit.MICROSECONDS.toMillis(micros), minDelay);
+	}
+
+	private void recordOnce(AtomicBoolean timed, long start) {
+		if (timed.compareAndSet(false, true)) {
+			latencies.record(System.nanoTime() - start);
+		}
+	}
+
+	private boolean tryAcquireHedge() {
+		long value;
+		do {
+			value = credits.get();
+			if (value < HEDGE_COST) {
+				return false;
+			}
+		} while (!credits.compareAndSet(value, value - HEDGE_COST));
+		return true;
+	}
+
+	/**
+	 * Complete with the first successful response, or with the last response when none is successful. The other
+	 * responses are released.
+	 */
+	private static void race(Promise<Response, NeverThrowsException> promise, AtomicInteger pending,
+			CompletableFuture<Promise<Response, NeverThrowsException>> winner, CompletableFuture<Response> response,
+			LongAdder unused) {
+		promise.thenOnResult(result -> {
+			boolean last = pending.decrementAndGet() == 0;
+			if ((result.getStatus().isSuccessful() || last) && winner.complete(promise)) {
+				response.complete(result);
+			} else {
+				release(result, unused);
+			}
+		});
+	}
+
+	/**
+	 * Close a response that is not used to release its connection, and count it.
+	 */
+	private static void release(Response response, LongAdder unused) {
+		unused.increment();
+		response.close();
+	}
+
+	private static Response await(Promise<Response, NeverThrowsException> promise, Deadline deadline)
+			throws Exception {
+		try {
+			return deadline.isBounded()
+					? promise.getOrThrow(deadline.remainingMillis(), TimeUnit.MILLISECONDS)
+					: promise.getOrThrow();
+		} catch (TimeoutException e) {
+			promise.cancel(true);
+			throw e;
+		}
+	}
+}
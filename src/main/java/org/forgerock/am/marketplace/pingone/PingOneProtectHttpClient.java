@@ -0,0 +1,182 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.pingone;
+
+import static org.forgerock.util.time.Duration.duration;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.forgerock.http.HttpApplicationException;
+import org.forgerock.http.handler.HttpClientHandler;
+import org.forgerock.openam.auth.service.marketplace.TNTPPingOneConfig;
+import org.forgerock.util.Options;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.iplanet.am.util.SystemProperties;
+
+/**
+ * Plugin scoped HTTP clients used by the PingOne Protect nodes.
+ * <p>
+ * One pooled {@link HttpClientHandler} is kept per PingOne environment, so that connections (and their TLS
+ * sessions) to {@code api.pingone.*} are reused across journeys instead of being opened and closed on every
+ * request. The clients are created on {@link PingOneProtectPlugin#onStartup()} and closed on
+ * {@link PingOneProtectPlugin#onShutdown()}.
+ * </p>
+ * <p>
+ * Pool limits are read from the AM server properties, and can be overridden for a single environment by adding the
+ * environment ID to the property name, for example
+ * {@code org.forgerock.am.marketplace.pingone.http.<environmentId>.maxConnections}. The PingOne API base URL can be
+ * overridden the same way, e.g. to send the requests of a load test to a local stand-in of PingOne.
+ * </p>
+ */
+final class PingOneProtectHttpClient {
+
+	private static final Logger logger = LoggerFactory.getLogger(PingOneProtectHttpClient.class);
+	private static final String loggerPrefix = "[PingOneProtectHttpClient]" + PingOneProtectPlugin.logAppender;
+
+	static final String PROPERTY_PREFIX = "org.forgerock.am.marketplace.pingone.http.";
+	static final String MAX_CONNECTIONS = "maxConnections";
+	static final String CONNECT_TIMEOUT = "connectTimeoutMillis";
+	static final String SO_TIMEOUT = "soTimeoutMillis";
+	static final String BASE_URL = "baseUrl";
+
+	private static final int DEFAULT_MAX_CONNECTIONS = 64;
+	private static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+	private static final int DEFAULT_SO_TIMEOUT = 10000;
+	private static final String DEFAULT_BASE_URL = "https://api.pingone";
+
+	private static final ConcurrentMap<String, HttpClientHandler> handlers = new ConcurrentHashMap<>();
+	private static volatile boolean running = false;
+	private static volatile boolean stopped = false;
+
+	private PingOneProtectHttpClient() {
+	}
+
+	/**
+	 * Allow clients to be created. Called when the plugin starts.
+	 */
+	static void start() {
+		stopped = false;
+		running = true;
+		logger.debug("{}HTTP client pool started", loggerPrefix);
+	}
+
+	/**
+	 * Close all pooled clients. Called when the plugin shuts down, no client is created afterwards until the plugin
+	 * starts again.
+	 */
+	static void shutdown() {
+		synchronized (handlers) {
+			stopped = true;
+			running = false;
+			handlers.forEach((environmentId, handler) -> {
+				try {
+					handler.close();
+				} catch (Exception e) {
+					logger.warn("{}Failed to close HTTP client for environment {}", loggerPrefix, environmentId, e);
+				}
+			});
+			handlers.clear();
+		}
+	}
+
+	/**
+	 * Drop the client of an environment, e.g. when the configuration of its worker changed. The client is closed once
+	 * the requests in flight had time to complete.
+	 *
+	 * @param environmentId The PingOne environment id
+	 */
+	static void invalidate(String environmentId) {
+		HttpClientHandler handler = handlers.remove(environmentId);
+		if (handler == null) {
+			return;
+		}
+		long delay = property(environmentId, CONNECT_TIMEOUT, DEFAULT_CONNECT_TIMEOUT)
+				+ property(environmentId, SO_TIMEOUT, DEFAULT_SO_TIMEOUT);
+		CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS).execute(() -> {
+			try {
+				handler.close();
+			} catch (Exception e) {
+				logger.warn("{}Failed to close HTTP client for environment {}", loggerPrefix, environmentId, e);
+			}
+		});
+	}
+
+	/**
+	 * Get the shared client for the environment of the given worker.
+	 *
+	 * @param worker The PingOne worker configuration
+	 * @return The pooled client for the worker environment
+	 * @throws HttpApplicationException When the client cannot be created, or the plugin has shut down
+	 */
+	static HttpClientHandler handlerFor(TNTPPingOneConfig worker) throws HttpApplicationException {
+		String environmentId = worker.environmentId();
+		HttpClientHandler handler = handlers.get(environmentId);
+		if (handler != null) {
+			return handler;
+		}
+		synchronized (handlers) {
+			if (stopped) {
+				// A journey still running while the plugin shuts down, a client created now would never be closed.
+				throw new HttpApplicationException("PingOne HTTP client pool is shut down");
+			}
+			if (!running) {
+				// Nodes can run before the plugin start up completes, e.g. in unit tests, start the pool lazily.
+				start();
+			}
+			handler = handlers.get(environmentId);
+			if (handler == null) {
+				handler = new HttpClientHandler(options(environmentId));
+				handlers.put(environmentId, handler);
+				logger.debug("{}Created HTTP client for environment {}", loggerPrefix, environmentId);
+			}
+			return handler;
+		}
+	}
+
+	/**
+	 * Get the base URL of the PingOne API for the environment of the given worker, without a trailing slash.
+	 * <p>
+	 * Unless overridden, this is the {@code api.pingone} host of the worker environment region.
+	 * </p>
+	 *
+	 * @param worker The PingOne worker configuration
+	 * @return The base URL, e.g. {@code https://api.pingone.com}
+	 */
+	static String baseUrl(TNTPPingOneConfig worker) {
+		String environmentId = worker.environmentId();
+		String baseUrl = SystemProperties.get(PROPERTY_PREFIX + environmentId + "." + BASE_URL,
+				SystemProperties.get(PROPERTY_PREFIX + BASE_URL));
+		if (baseUrl == null || baseUrl.trim().isEmpty()) {
+			return DEFAULT_BASE_URL + worker.environmentRegion().getDomainSuffix();
+		}
+		baseUrl = baseUrl.trim();
+		return baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+	}
+
+	private static Options options(String environmentId) {
+		return Options.defaultOptions()
+				.set(HttpClientHandler.OPTION_REUSE_CONNECTIONS, true)
+				.set(HttpClientHandler.OPTION_MAX_CONNECTIONS,
+						property(environmentId, MAX_CONNECTIONS, DEFAULT_MAX_CONNECTIONS))
+				.set(HttpClientHandler.OPTION_CONNECT_TIMEOUT,
+						duration(property(environmentId, CONNECT_TIMEOUT, DEFAULT_CONNECT_TIMEOUT), TimeUnit.MILLISECONDS))
+				.set(HttpClientHandler.OPTION_SO_TIMEOUT,
+						duration(property(environmentId, SO_TIMEOUT, DEFAULT_SO_TIMEOUT), TimeUnit.MILLISECONDS));
+	}
+
+	private static int property(String environmentId, String name, int defaultValue) {
+		int value = SystemProperties.getAsInt(PROPERTY_PREFIX + name, defaultValue);
+		return SystemProperties.getAsInt(PROPERTY_PREFIX + environmentId + "." + name, value);
+	}
+}
@@ -0,0 +1,244 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.pingone;
+
+import java.security.AccessController;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.forgerock.openam.core.realms.Realm;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.iplanet.am.util.SystemProperties;
+import com.iplanet.sso.SSOToken;
+import com.sun.identity.idm.AMIdentityRepository;
+import com.sun.identity.idm.IdEventListener;
+import com.sun.identity.security.AdminTokenAction;
+
+/**
+ * Cache of the user id and username sent to PingOne, by universal id.
+ * <p>
+ * The Evaluation node only needs the username of the user, the cache spares the identity store lookups for users
+ * seen recently. Entries expire after a time to live, and are dropped when the identity repository of the realm
+ * reports a change of the user.
+ * </p>
+ */
+final class PingOneProtectIdentityCache {
+
+	private static final Logger logger = LoggerFactory.getLogger(PingOneProtectIdentityCache.class);
+	private static final String loggerPrefix = "[PingOneProtectIdentityCache]" + PingOneProtectPlugin.logAppender;
+
+	static final String PROPERTY_PREFIX = "org.forgerock.am.marketplace.pingone.identityCache.";
+	static final String MAX_SIZE = PROPERTY_PREFIX + "maxSize";
+	static final String TTL = PROPERTY_PREFIX + "ttlSeconds";
+
+	private static final PingOneProtectIdentityCache INSTANCE = new PingOneProtectIdentityCache();
+
+	private final long ttl = SystemProperties.getAsInt(TTL, 300);
+	private final Cache<String, CachedUser> cache = CacheBuilder.newBuilder()
+			.maximumSize(SystemProperties.getAsInt(MAX_SIZE, 10000))
+			.expireAfterWrite(Math.max(ttl, 1), TimeUnit.SECONDS)
+			.build();
+	private final ConcurrentMap<String, AMIdentityRepository> repositories = new ConcurrentHashMap<>();
+	private final IdEventListener listener = new Listener();
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	private PingOneProtectIdentityCache() {
+	}
+
+	/**
+	 * Get the identity cache instance.
+	 *
+	 * @return The identity cache
+	 */
+	static PingOneProtectIdentityCache getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Whether the cache is enabled.
+	 *
+	 * @return True if users are cached
+	 */
+	boolean isEnabled() {
+		return ttl > 0;
+	}
+
+	/**
+	 * Get a cached user.
+	 *
+	 * @param universalId The universal id of the user
+	 * @return The user id and username, or null
+	 */
+	CachedUser get(String universalId) {
+		CachedUser user = cache.getIfPresent(key(universalId));
+		if (user == null) {
+			misses.increment();
+		} else {
+			hits.increment();
+		}
+		return user;
+	}
+
+	/**
+	 * Cache a user.
+	 *
+	 * @param realm       The realm of the user
+	 * @param universalId The universal id the user is looked up with
+	 * @param id          The user id sent to PingOne
+	 * @param username    The username sent to PingOne
+	 */
+	void put(Realm realm, String universalId, String id, String username) {
+		if (universalId == null || id == null || username == null) {
+			return;
+		}
+		if (!listen(realm)) {
+			return;
+		}
+		cache.put(key(universalId), new CachedUser(id, username));
+	}
+
+	/**
+	 * Number of users served from the cache.
+	 *
+	 * @return The hit count
+	 */
+	long hits() {
+		return hits.sum();
+	}
+
+	/**
+	 * Number of users not found in the cache.
+	 *
+	 * @return The miss count
+	 */
+	long misses() {
+		return misses.sum();
+	}
+
+	/**
+	 * Stop listening to the identity repositories and drop the cached users.
+	 */
+	void shutdown() {
+		repositories.forEach((realm, repository) -> {
+			try {
+				repository.removeEventListener(listener);
+			} catch (Exception e) {
+				logger.debug("{}Unable to remove the listener of realm {}", loggerPrefix, realm, e);
+			}
+		});
+		repositories.clear();
+		cache.invalidateAll();
+	}
+
+	/**
+	 * Listen to the identity changes of a realm, so that cached users can be dropped.
+	 *
+	 * @return False if the changes cannot be followed, the users of the realm are then not cached
+	 */
+	private boolean listen(Realm realm) {
+		String path = realm.asPath();
+		if (repositories.containsKey(path)) {
+			return true;
+		}
+		synchronized (repositories) {
+			if (repositories.containsKey(path)) {
+				return true;
+			}
+			try {
+				SSOToken adminToken = AccessController.doPrivileged(AdminTokenAction.getInstance());
+				AMIdentityRepository repository = new AMIdentityRepository(path, adminToken);
+				repository.addEventListener(listener);
+				repositories.put(path, repository);
+				return true;
+			} catch (Exception e) {
+				logger.warn("{}Unable to listen to the identity changes of realm {}", loggerPrefix, path, e);
+				return false;
+			}
+		}
+	}
+
+	private void invalidate(String universalId) {
+		if (universalId != null) {
+			cache.invalidate(key(universalId));
+		}
+	}
+
+	/**
+	 * The cache key of a universal id. Universal ids are not case sensitive, and the identity repository events may
+	 * not use the case of the lookup.
+	 */
+	private static String key(String universalId) {
+		return universalId.toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * A cached user.
+	 */
+	static final class CachedUser {
+		private final String id;
+		private final String username;
+
+		private CachedUser(String id, String username) {
+			this.id = id;
+			this.username = username;
+		}
+
+		/**
+		 * Get the user id.
+		 *
+		 * @return The user id
+		 */
+		String getId() {
+			return id;
+		}
+
+		/**
+		 * Get the username.
+		 *
+		 * @return The username
+		 */
+		String getUsername() {
+			return username;
+		}
+	}
+
+	/**
+	 * Drops the users changed in the identity repositories.
+	 */
+	private final class Listener implements IdEventListener {
+
+		@Override
+		public void identityChanged(String universalId) {
+			invalidate(universalId);
+		}
+
+		@Override
+		public void identityDeleted(String universalId) {
+			invalidate(universalId);
+		}
+
+		@Override
+		public void identityRenamed(String universalId) {
+			invalidate(universalId);
+		}
+
+		@Override
+		public void allIdentitiesChanged() {
+			cache.invalidateAll();
+		}
+	}
+}
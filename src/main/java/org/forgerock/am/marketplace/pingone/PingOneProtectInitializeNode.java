@@ -10,9 +10,10 @@ package org.forgerock.am.marketplace.pingone;
 
 import static java.util.Collections.emptyList;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.ResourceBundle;
 
@@ -20,6 +21,7 @@ import javax.inject.Inject;
 import javax.security.auth.callback.Callback;
 
 import com.sun.identity.authentication.callbacks.HiddenValueCallback;
+import com.sun.identity.authentication.callbacks.ScriptTextOutputCallback;
 import com.sun.identity.authentication.spi.MetadataCallback;
 import org.forgerock.json.JsonValue;
 import org.forgerock.openam.annotations.sm.Attribute;
@@ -35,7 +37,9 @@ import org.forgerock.util.i18n.PreferredLocales;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Hashing;
 import com.google.inject.assistedinject.Assisted;
 
 /**
@@ -45,10 +49,23 @@ import com.google.inject.assistedinject.Assisted;
 		"marketplace", "trustnetwork" })
 public class PingOneProtectInitializeNode extends AbstractDecisionNode {
 	private static final Logger logger = LoggerFactory.getLogger(PingOneProtectInitializeNode.class);
-	private String loggerPrefix = "[PingOneProtectInitializeNode]" + PingOneProtectPlugin.logAppender;
+	private static final String loggerPrefix = "[PingOneProtectInitializeNode]" + PingOneProtectPlugin.logAppender;
+	private static final PingOneProtectErrorReporter errors = new PingOneProtectErrorReporter(logger, loggerPrefix);
+
+	/**
+	 * Transient state variable name for storing the signals collected with the initialization, taken by the
+	 * {@link PingOneProtectEvaluationNode}.
+	 */
+	static final String COLLECTED_SIGNALS = PingOneProtectInitializeNode.class.getSimpleName() + ".signals";
+	/**
+	 * Cookie set by the client script while the SDK is initialized in the page, holding the configuration hash.
+	 */
+	static final String SDK_COOKIE = "p1sdk";
 
 	private final Config config;
 	private TNTPPingOneConfig tntpPingOneConfig;
+	private String configHash;
+	private String script;
 
 	private static final String BUNDLE = PingOneProtectInitializeNode.class.getName();
 	private static final String NEXT = "NEXT";
@@ -174,6 +191,26 @@ public class PingOneProtectInitializeNode extends AbstractDecisionNode {
 			return true;
 		}
 
+		/**
+		 * Collect the signals in the same callback as the initialization, for the Evaluation node that follows.
+		 *
+		 * @return {@literal true} to initialize and collect in a single round trip.
+		 */
+		@Attribute(order = 1300)
+		default boolean collectSignals() {
+			return false;
+		}
+
+		/**
+		 * Continue without a callback when the client reports the SDK already initialized with this configuration.
+		 *
+		 * @return {@literal true} to skip the initialization.
+		 */
+		@Attribute(order = 1400)
+		default boolean skipWhenInitialized() {
+			return false;
+		}
+
 	}
 
 	/**
@@ -185,7 +222,7 @@ public class PingOneProtectInitializeNode extends AbstractDecisionNode {
 	@Inject
 	public PingOneProtectInitializeNode(@Assisted Config config, AnnotatedServiceRegistry serviceRegistry) {
 		this.config = config;
-		this.tntpPingOneConfig = TNTPPingOneConfigChoiceValues.getTNTPPingOneConfig(config.tntpPingOneConfigName());
+		this.tntpPingOneConfig = PingOneProtectWorkerRegistry.getInstance().get(config.tntpPingOneConfigName());
 	}
 
 	@Override
@@ -197,33 +234,46 @@ public class PingOneProtectInitializeNode extends AbstractDecisionNode {
 					HiddenValueCallback clientErrorCallback = context.getCallback(HiddenValueCallback.class).get();
 					Optional<String> clientError = Optional.ofNullable(clientErrorCallback.getValue());
 					if (clientError.isPresent() && !clientError.get().equals("clientError")) {
-						logger.error(loggerPrefix + "Client error: " + clientError.get());
-						context.getStateFor(this).putTransient(loggerPrefix + "ClientError", new Date() + ": " + clientError.get());
+						errors.reportClientError(context.getStateFor(this), clientError.get());
 						return Action.goTo(ERROR).withHeader("Error occurred").withErrorMessage(clientError.get()).build();
 					}
 				}
 
+				if (collectsSignals()) {
+					Optional<String> clientError = getHiddenValue(context, "clientError");
+					if (clientError.isPresent()) {
+						errors.reportClientError(context.getStateFor(this), clientError.get());
+						return Action.goTo(ERROR).withHeader("Error occurred").withErrorMessage(clientError.get()).build();
+					}
+					// Transient state reaches the Evaluation node, unless a node in between sends callbacks.
+					getHiddenValue(context, "clientScriptOutputData").ifPresent(
+							signals -> context.getStateFor(this).putTransient(COLLECTED_SIGNALS, signals));
+				}
+
 				return Action.goTo(NEXT).build();
 			} else {
+				if (config.skipWhenInitialized() && !collectsSignals() && isInitialized(context)) {
+					logger.debug("{}SDK already initialized, continue without callback", loggerPrefix);
+					return Action.goTo(NEXT).build();
+				}
 				return getCallback();
 			}
 		} catch (Exception e) {
-			String stackTrace = org.apache.commons.lang.exception.ExceptionUtils.getStackTrace(e);
-			logger.error(loggerPrefix + "Exception occurred: " + stackTrace);
-			context.getStateFor(this).putTransient(loggerPrefix + "Exception", new Date() + ": " + e.getMessage());
-			context.getStateFor(this).putTransient(loggerPrefix + "StackTrace", new Date() + ": " + stackTrace);
+			errors.report(context.getStateFor(this), e);
 			return Action.goTo(ERROR).withHeader("Error occurred").withErrorMessage(e.getMessage()).build();
 		}
 
 	}
 
 	private Action getCallback() throws Exception {
-		String clientScript = ScriptHelper.readJS(ScriptHelper.sdkJsPathTemplate);
-
 		List<Callback> callbacks = new ArrayList<>();
 
-		if (config.useScript()) {
-			callbacks.add(ScriptHelper.getScriptedCallback(clientScript, getInitValues()));
+		if (collectsSignals()) {
+			callbacks.add(new ScriptTextOutputCallback(getScript()));
+			callbacks.add(new HiddenValueCallback("clientScriptOutputData"));
+			callbacks.add(new HiddenValueCallback("clientError"));
+		} else if (config.useScript()) {
+			callbacks.add(new ScriptTextOutputCallback(getScript()));
 		} else {
 			JsonValue initValues = getInitValues();
 			initValues.put("_type", "PingOneProtect");
@@ -235,6 +285,59 @@ public class PingOneProtectInitializeNode extends AbstractDecisionNode {
 		return Action.send(callbacks).build();
 	}
 
+	/**
+	 * The signals can only be collected by the script, the metadata callback is handled by the client SDK.
+	 */
+	private boolean collectsSignals() {
+		return config.useScript() && config.collectSignals();
+	}
+
+	/**
+	 * Whether the client reports the SDK initialized with this configuration. The cookie only saves the
+	 * callback and is shared by the tabs of the browser. When the SDK is not live in the page, the Evaluation node
+	 * script clears the cookie and reports a client error, so that an Error outcome routed back to this node
+	 * initializes the SDK.
+	 */
+	private boolean isInitialized(TreeContext context) {
+		Map<String, String> cookies = context.request.cookies;
+		return cookies != null && getConfigHash().equals(cookies.get(SDK_COOKIE));
+	}
+
+	/**
+	 * The client script, which sets the {@link #SDK_COOKIE} cookie once the SDK is initialized. It only depends on
+	 * the node configuration, and is rendered once.
+	 */
+	private String getScript() throws NodeProcessException {
+		if (script == null) {
+			JsonValue values = getInitValues();
+			values.put("sdkCookie", SDK_COOKIE);
+			values.put("configHash", getConfigHash());
+			script = ScriptHelper.render(collectsSignals() ? ScriptHelper.sdkJsPathCollectTemplate
+					: ScriptHelper.sdkJsPathTemplate, values.asMap());
+		}
+		return script;
+	}
+
+	/**
+	 * A hash of the SDK URL, environment and initialization options, so that a page initialized by a node with
+	 * another configuration is initialized again.
+	 */
+	private String getConfigHash() {
+		if (configHash == null) {
+			configHash = Hashing.sha256().hashString(getInitValues().toString(), StandardCharsets.UTF_8).toString()
+					.substring(0, 16);
+		}
+		return configHash;
+	}
+
+	private static Optional<String> getHiddenValue(TreeContext context, String id) {
+		return context.getCallbacks(HiddenValueCallback.class).stream()
+				.filter(callback -> id.equals(callback.getId()))
+				.map(HiddenValueCallback::getValue)
+				.filter(value -> !Strings.isNullOrEmpty(value))
+				.findFirst();
+	}
+
 	private JsonValue getInitValues() {
 		JsonValue initValues = JsonValue.json(JsonValue.object());
 		initValues.put("envId", tntpPingOneConfig.environmentId());
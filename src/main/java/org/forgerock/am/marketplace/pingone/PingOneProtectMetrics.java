@@ -0,0 +1,287 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.pingone;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.forgerock.openam.auth.node.api.Action;
+import org.forgerock.openam.core.realms.Realm;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.iplanet.am.util.SystemProperties;
+
+/**
+ * Timers and counters of the PingOne calls, per realm and PingOne worker.
+ * <p>
+ * Each realm and worker pair is registered as a {@link PingOneProtectMetricsMXBean} in the platform MBean server,
+ * which AM monitoring exposes over JMX, under
+ * {@code org.forgerock.am.marketplace.pingone:type=PingOneProtect,realm=<realm>,worker=<worker name>}. Recording is
+ * lock free and does not allocate once the metrics of a pair and an outcome exist: times go to
+ * {@link LatencyHistogram}s and counts to {@link LongAdder}s.
+ * </p>
+ */
+final class PingOneProtectMetrics implements PingOneProtectMetricsMXBean {
+
+	private static final Logger logger = LoggerFactory.getLogger(PingOneProtectMetrics.class);
+	private static final String loggerPrefix = "[PingOneProtectMetrics]" + PingOneProtectPlugin.logAppender;
+
+	static final String PROPERTY_PREFIX = "org.forgerock.am.marketplace.pingone.metrics.";
+	/**
+	 * Number of samples after which the timers decay, so that percentiles follow recent traffic.
+	 */
+	static final String SAMPLE_LIMIT = PROPERTY_PREFIX + "sampleLimit";
+
+	private static final String DOMAIN = "org.forgerock.am.marketplace.pingone";
+	private static final String[] STATUS_CLASSES = { "none", "1xx", "2xx", "3xx", "4xx", "5xx" };
+
+	private static final ConcurrentMap<String, ConcurrentMap<String, PingOneProtectMetrics>> metrics =
+			new ConcurrentHashMap<>();
+
+	private final String realm;
+	private final String worker;
+	private final LatencyHistogram token;
+	private final LatencyHistogram evaluate;
+	private final LatencyHistogram event;
+	private final LatencyHistogram identityLookup;
+	private final LongAdder[] statuses = new LongAdder[STATUS_CLASSES.length];
+	private final Size requestBytes = new Size();
+	private final Size responseBytes = new Size();
+	private final ConcurrentMap<String, LongAdder> outcomes = new ConcurrentHashMap<>();
+	private volatile ObjectName objectName;
+
+	private PingOneProtectMetrics(String realm, String worker) {
+		this.realm = realm;
+		this.worker = worker;
+		long sampleLimit = SystemProperties.getAsInt(SAMPLE_LIMIT, 100000);
+		this.token = new LatencyHistogram(sampleLimit);
+		this.evaluate = new LatencyHistogram(sampleLimit);
+		this.event = new LatencyHistogram(sampleLimit);
+		this.identityLookup = new LatencyHistogram(sampleLimit);
+		for (int i = 0; i < statuses.length; i++) {
+			statuses[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Get the metrics of a realm and worker, registering them on first use.
+	 *
+	 * @param realm      The realm
+	 * @param workerName The name of the PingOne worker configuration
+	 * @return The metrics
+	 */
+	static PingOneProtectMetrics forWorker(Realm realm, String workerName) {
+		String realmPath = realm.asPath();
+		ConcurrentMap<String, PingOneProtectMetrics> byWorker = metrics.get(realmPath);
+		if (byWorker == null) {
+			byWorker = metrics.computeIfAbsent(realmPath, key -> new ConcurrentHashMap<>());
+		}
+		PingOneProtectMetrics workerMetrics = byWorker.get(workerName);
+		if (workerMetrics == null) {
+			workerMetrics = byWorker.computeIfAbsent(workerName, key -> {
+				PingOneProtectMetrics created = new PingOneProtectMetrics(realmPath, key);
+				created.register();
+				return created;
+			});
+		}
+		return workerMetrics;
+	}
+
+	/**
+	 * Unregister all the metrics. Called when the plugin shuts down.
+	 */
+	static void shutdown() {
+		metrics.values().forEach(byWorker -> byWorker.values().forEach(PingOneProtectMetrics::unregister));
+		metrics.clear();
+	}
+
+	/**
+	 * Record the time taken to get an access token.
+	 *
+	 * @param nanos The duration in nanoseconds
+	 */
+	void recordToken(long nanos) {
+		token.record(nanos);
+	}
+
+	/**
+	 * Record the time taken by a risk evaluation request.
+	 *
+	 * @param nanos The duration in nanoseconds
+	 */
+	void recordEvaluate(long nanos) {
+		evaluate.record(nanos);
+	}
+
+	/**
+	 * Record the time taken by a risk evaluation completion update.
+	 *
+	 * @param nanos The duration in nanoseconds
+	 */
+	void recordEvent(long nanos) {
+		event.record(nanos);
+	}
+
+	/**
+	 * Record the time taken to look up the user in the identity store.
+	 *
+	 * @param nanos The duration in nanoseconds
+	 */
+	void recordIdentityLookup(long nanos) {
+		identityLookup.record(nanos);
+	}
+
+	/**
+	 * Record the HTTP status of a PingOne response.
+	 *
+	 * @param code The status code, 0 when no response was received
+	 */
+	void recordStatus(int code) {
+		int statusClass = code / 100;
+		statuses[statusClass > 0 && statusClass < statuses.length ? statusClass : 0].increment();
+	}
+
+	/**
+	 * Record the size of a request payload.
+	 *
+	 * @param bytes The size in bytes, ignored when negative
+	 */
+	void recordRequestSize(long bytes) {
+		requestBytes.record(bytes);
+	}
+
+	/**
+	 * Record the size of a response payload.
+	 *
+	 * @param bytes The size in bytes, ignored when negative
+	 */
+	void recordResponseSize(long bytes) {
+		responseBytes.record(bytes);
+	}
+
+	/**
+	 * Count the outcome of a node.
+	 *
+	 * @param action The action returned by the node
+	 * @return The action
+	 */
+	Action recordOutcome(Action action) {
+		if (action.outcome != null) {
+			LongAdder count = outcomes.get(action.outcome);
+			if (count == null) {
+				count = outcomes.computeIfAbsent(action.outcome, key -> new LongAdder());
+			}
+			count.increment();
+		}
+		return action;
+	}
+
+	@Override
+	public String getRealm() {
+		return realm;
+	}
+
+	@Override
+	public String getWorker() {
+		return worker;
+	}
+
+	@Override
+	public Map<String, Long> getTimers() {
+		Map<String, Long> timers = new TreeMap<>();
+		putTimer(timers, "token", token);
+		putTimer(timers, "evaluate", evaluate);
+		putTimer(timers, "event", event);
+		putTimer(timers, "identityLookup", identityLookup);
+		return timers;
+	}
+
+	@Override
+	public Map<String, Long> getCounters() {
+		Map<String, Long> counters = new TreeMap<>();
+		for (int i = 0; i < statuses.length; i++) {
+			counters.put("status." + STATUS_CLASSES[i], statuses[i].sum());
+		}
+		requestBytes.put(counters, "requestBytes");
+		responseBytes.put(counters, "responseBytes");
+		outcomes.forEach((outcome, count) -> counters.put("outcome." + outcome, count.sum()));
+		return counters;
+	}
+
+	private static void putTimer(Map<String, Long> timers, String name, LatencyHistogram histogram) {
+		long count = histogram.count();
+		timers.put(name + ".count", count);
+		timers.put(name + ".meanMicros", count > 0 ? histogram.sumMicros() / count : 0);
+		timers.put(name + ".p50Micros", histogram.percentileMicros(50));
+		timers.put(name + ".p90Micros", histogram.percentileMicros(90));
+		timers.put(name + ".p99Micros", histogram.percentileMicros(99));
+	}
+
+	private void register() {
+		try {
+			ObjectName name = new ObjectName(DOMAIN + ":type=PingOneProtect,realm=" + ObjectName.quote(realm)
+					+ ",worker=" + ObjectName.quote(worker));
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (server.isRegistered(name)) {
+				// Left behind by an earlier instance of the plugin.
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(this, name);
+			objectName = name;
+		} catch (Exception e) {
+			logger.warn("{}Unable to register the metrics of worker {} in realm {}", loggerPrefix, worker, realm, e);
+		}
+	}
+
+	private void unregister() {
+		ObjectName name = objectName;
+		if (name == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		} catch (Exception e) {
+			logger.debug("{}Unable to unregister {}", loggerPrefix, name, e);
+		}
+		objectName = null;
+	}
+
+	/**
+	 * Count, total and maximum of payload sizes.
+	 */
+	private static final class Size {
+		private final LongAdder count = new LongAdder();
+		private final LongAdder total = new LongAdder();
+		private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+		private void record(long bytes) {
+			if (bytes < 0) {
+				return;
+			}
+			count.increment();
+			total.add(bytes);
+			max.accumulate(bytes);
+		}
+
+		private void put(Map<String, Long> counters, String name) {
+			counters.put(name + ".count", count.sum());
+			counters.put(name + ".total", total.sum());
+			counters.put(name + ".max", max.get());
+		}
+	}
+}
@@ -0,0 +1,47 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.pingone;
+
+import java.util.Map;
+
+/**
+ * Monitoring view of the PingOne calls made for one realm and PingOne worker.
+ */
+public interface PingOneProtectMetricsMXBean {
+
+	/**
+	 * The realm of the metrics.
+	 *
+	 * @return The realm path
+	 */
+	String getRealm();
+
+	/**
+	 * The PingOne worker of the metrics.
+	 *
+	 * @return The worker configuration name
+	 */
+	String getWorker();
+
+	/**
+	 * The count, mean and percentiles in microseconds of the token acquisition, {@code evaluate}, {@code event} and
+	 * identity lookup times, e.g. {@code evaluate.p99Micros}.
+	 *
+	 * @return The timer values by name
+	 */
+	Map<String, Long> getTimers();
+
+	/**
+	 * The HTTP status classes, payload sizes and node outcome counts, e.g. {@code status.5xx},
+	 * {@code requestBytes.total} or {@code outcome.high}.
+	 *
+	 * @return The counter values by name
+	 */
+	Map<String, Long> getCounters();
+}
@@ -0,0 +1,521 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.pingone;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+
+import org.forgerock.openam.auth.service.marketplace.TNTPPingOneConfig;
+import org.forgerock.openam.core.realms.Realm;
+import org.forgerock.openam.core.realms.Realms;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.iplanet.am.util.SystemProperties;
+
+/**
+ * File backed outbox for the completion updates sent by the {@link PingOneProtectCompletionDispatcher}.
+ * <p>
+ * Every queued update is appended to a journal on local disk before it is handed to the dispatcher, and an
+ * acknowledgement is appended once PingOne accepted it. Updates that are not acknowledged are delivered again when
+ * AM starts, and periodically while it runs, so that evaluations are not left open when a server restarts.
+ * </p>
+ * <p>
+ * The journal is a sequence of append only segment files. Writes go to the page cache and are flushed to disk by a
+ * background thread at a fixed interval, so appending does not wait for the disk. Segments without pending updates
+ * are deleted, and the pending updates of the oldest segment are copied forward when the journal grows past half of
+ * its size limit. When the limit is reached new updates are no longer journaled, they are still queued in memory.
+ * </p>
+ */
+final class PingOneProtectOutbox {
+
+	private static final Logger logger = LoggerFactory.getLogger(PingOneProtectOutbox.class);
+	private static final String loggerPrefix = "[PingOneProtectOutbox]" + PingOneProtectPlugin.logAppender;
+
+	static final String PROPERTY_PREFIX = "org.forgerock.am.marketplace.pingone.outbox.";
+	static final String ENABLED = PROPERTY_PREFIX + "enabled";
+	static final String DIRECTORY = PROPERTY_PREFIX + "directory";
+	static final String SEGMENT_SIZE = PROPERTY_PREFIX + "segmentSizeBytes";
+	static final String MAX_SIZE = PROPERTY_PREFIX + "maxSizeBytes";
+	static final String FSYNC_INTERVAL = PROPERTY_PREFIX + "fsyncIntervalMillis";
+	static final String REPLAY_INTERVAL = PROPERTY_PREFIX + "replayIntervalSeconds";
+
+	private static final String CONFIG_PATH = "com.iplanet.services.configpath";
+	private static final String SEGMENT_PREFIX = "outbox-";
+	private static final String SEGMENT_SUFFIX = ".log";
+	private static final byte ENQUEUE = 1;
+	private static final byte ACK = 2;
+	private static final long STARTUP_REPLAY_DELAY = TimeUnit.SECONDS.toMillis(30);
+
+	private static final PingOneProtectOutbox INSTANCE = new PingOneProtectOutbox();
+
+	private final Object lock = new Object();
+	private final Map<Long, Entry> entries = new ConcurrentHashMap<>();
+	private final TreeMap<Long, Segment> segments = new TreeMap<>();
+	private final LongAdder rejected = new LongAdder();
+	private volatile boolean enabled = false;
+	private volatile boolean dirty = false;
+	private Path directory;
+	private Segment active;
+	private long nextId;
+	private long totalBytes;
+	private long segmentSize;
+	private long maxSize;
+	private long replayInterval;
+	private ScheduledExecutorService scheduler;
+
+	private PingOneProtectOutbox() {
+	}
+
+	/**
+	 * Get the outbox instance.
+	 *
+	 * @return The outbox
+	 */
+	static PingOneProtectOutbox getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Open the journal and schedule the delivery of the updates left over from the previous run. Called when the
+	 * plugin starts, does nothing unless the outbox is enabled.
+	 */
+	synchronized void start() {
+		if (enabled || !SystemProperties.getAsBoolean(ENABLED, false)) {
+			return;
+		}
+		String configured = SystemProperties.get(DIRECTORY);
+		directory = configured != null ? Paths.get(configured)
+				: Paths.get(SystemProperties.get(CONFIG_PATH, System.getProperty("java.io.tmpdir")),
+						"pingone-protect-outbox");
+		segmentSize = SystemProperties.getAsLong(SEGMENT_SIZE, 4L * 1024 * 1024);
+		maxSize = SystemProperties.getAsLong(MAX_SIZE, 64L * 1024 * 1024);
+		replayInterval = TimeUnit.SECONDS.toMillis(SystemProperties.getAsInt(REPLAY_INTERVAL, 300));
+		try {
+			Files.createDirectories(directory);
+			synchronized (lock) {
+				recover();
+				roll();
+			}
+		} catch (IOException e) {
+			logger.error("{}Unable to open the outbox in {}, completion updates are not journaled", loggerPrefix,
+					directory, e);
+			return;
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactoryBuilder().setNameFormat("PingOneProtect-outbox-%d").setDaemon(true).build());
+		long fsyncInterval = SystemProperties.getAsLong(FSYNC_INTERVAL, 100);
+		scheduler.scheduleWithFixedDelay(this::flush, fsyncInterval, fsyncInterval, TimeUnit.MILLISECONDS);
+		scheduler.scheduleWithFixedDelay(this::replay, STARTUP_REPLAY_DELAY,
+				Math.max(replayInterval, STARTUP_REPLAY_DELAY), TimeUnit.MILLISECONDS);
+		enabled = true;
+		logger.info("{}Outbox opened in {} with {} pending completion updates", loggerPrefix, directory,
+				entries.size());
+	}
+
+	/**
+	 * Flush and close the journal. Called when the plugin shuts down.
+	 */
+	synchronized void shutdown() {
+		if (!enabled) {
+			return;
+		}
+		enabled = false;
+		scheduler.shutdownNow();
+		synchronized (lock) {
+			try {
+				active.channel.force(false);
+				active.channel.close();
+			} catch (IOException e) {
+				logger.warn("{}Unable to close the outbox", loggerPrefix, e);
+			}
+			segments.clear();
+			entries.clear();
+			active = null;
+			totalBytes = 0;
+			nextId = 0;
+		}
+	}
+
+	/**
+	 * Journal a completion update.
+	 *
+	 * @param realmPath  The realm path
+	 * @param workerName The name of the PingOne worker configuration
+	 * @param riskEvalId The risk evaluation id
+	 * @param status     The completion status
+	 * @return The outbox id of the update, or -1 if the update is not journaled
+	 */
+	long append(String realmPath, String workerName, String riskEvalId, String status) {
+		if (!enabled) {
+			return -1;
+		}
+		synchronized (lock) {
+			if (active == null || totalBytes >= maxSize) {
+				rejected.increment();
+				return -1;
+			}
+			Entry entry = new Entry(nextId++, realmPath, workerName, riskEvalId, status);
+			try {
+				write(entry);
+			} catch (IOException e) {
+				logger.warn("{}Unable to journal completion update for {}", loggerPrefix, riskEvalId, e);
+				rejected.increment();
+				return -1;
+			}
+			entries.put(entry.id, entry);
+			return entry.id;
+		}
+	}
+
+	/**
+	 * Acknowledge a completion update, it is not delivered again.
+	 *
+	 * @param id The outbox id of the update
+	 */
+	void ack(long id) {
+		Entry entry = id < 0 ? null : entries.remove(id);
+		if (entry == null) {
+			return;
+		}
+		synchronized (lock) {
+			if (active == null) {
+				return;
+			}
+			try {
+				writeRecord(encode(ACK, id, null));
+			} catch (IOException e) {
+				logger.warn("{}Unable to journal acknowledgement {}", loggerPrefix, id, e);
+			}
+			Segment segment = segments.get(entry.segment);
+			if (segment != null) {
+				segment.live--;
+			}
+			compact();
+		}
+	}
+
+	/**
+	 * Mark an update as handed to the dispatcher.
+	 *
+	 * @param id The outbox id of the update
+	 */
+	void submitted(long id) {
+		Entry entry = entries.get(id);
+		if (entry != null) {
+			entry.submittedAt = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Number of updates in the journal that are not acknowledged.
+	 *
+	 * @return The pending count
+	 */
+	int pending() {
+		return entries.size();
+	}
+
+	/**
+	 * Number of updates not journaled because the journal was full or could not be written.
+	 *
+	 * @return The rejected count
+	 */
+	long rejected() {
+		return rejected.sum();
+	}
+
+	/**
+	 * Size of the journal on disk.
+	 *
+	 * @return The size in bytes
+	 */
+	long size() {
+		synchronized (lock) {
+			return totalBytes;
+		}
+	}
+
+	private void write(Entry entry) throws IOException {
+		writeRecord(encode(ENQUEUE, entry.id, entry));
+		active.live++;
+		entry.segment = active.seq;
+	}
+
+	private void writeRecord(ByteBuffer record) throws IOException {
+		if (active.size + record.remaining() > segmentSize && active.size > 0) {
+			roll();
+		}
+		int length = record.remaining();
+		while (record.hasRemaining()) {
+			active.channel.write(record);
+		}
+		active.size += length;
+		totalBytes += length;
+		dirty = true;
+	}
+
+	/**
+	 * Close the active segment and start a new one.
+	 */
+	private void roll() throws IOException {
+		long seq = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+		if (active != null) {
+			active.channel.force(false);
+			active.channel.close();
+			active.channel = null;
+		}
+		Path path = directory.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, seq, SEGMENT_SUFFIX));
+		active = new Segment(seq, path);
+		active.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.APPEND);
+		segments.put(seq, active);
+	}
+
+	/**
+	 * Delete leading segments that no longer hold pending updates, and copy the pending updates of the oldest
+	 * segment forward when the journal is more than half full. Segments are only removed oldest first, so that an
+	 * acknowledgement is never removed before the update it acknowledges.
+	 */
+	private void compact() {
+		try {
+			while (segments.size() > 1) {
+				Segment oldest = segments.firstEntry().getValue();
+				if (oldest.live > 0) {
+					if (totalBytes <= maxSize / 2) {
+						return;
+					}
+					for (Entry entry : entries.values()) {
+						if (entry.segment == oldest.seq) {
+							write(entry);
+						}
+					}
+					oldest.live = 0;
+				}
+				segments.remove(oldest.seq);
+				totalBytes -= oldest.size;
+				Files.deleteIfExists(oldest.path);
+			}
+		} catch (IOException e) {
+			logger.warn("{}Unable to compact the outbox", loggerPrefix, e);
+		}
+	}
+
+	private void flush() {
+		if (!dirty) {
+			return;
+		}
+		FileChannel channel;
+		synchronized (lock) {
+			if (active == null) {
+				return;
+			}
+			dirty = false;
+			channel = active.channel;
+		}
+		try {
+			channel.force(false);
+		} catch (IOException e) {
+			// The segment may have been rolled over and closed, it was forced before closing.
+			logger.debug("{}Unable to flush the outbox", loggerPrefix, e);
+		}
+	}
+
+	/**
+	 * Hand the updates that have not been acknowledged in time to the dispatcher again. An update that cannot be
+	 * handed over, e.g. because its worker configuration was deleted, is acknowledged after as many replays as the
+	 * dispatcher makes delivery attempts, so that it does not keep its segment from being compacted.
+	 */
+	private void replay() {
+		long due = System.currentTimeMillis() - replayInterval;
+		int count = 0;
+		for (Entry entry : entries.values()) {
+			if (entry.submittedAt >= due) {
+				continue;
+			}
+			try {
+				Realm realm = Realms.of(entry.realmPath);
+				TNTPPingOneConfig worker = PingOneProtectWorkerRegistry.getInstance().get(entry.workerName);
+				entry.submittedAt = System.currentTimeMillis();
+				PingOneProtectCompletionDispatcher.getInstance().replay(realm, entry.workerName, worker,
+						entry.riskEvalId, entry.status, entry.id);
+				count++;
+			} catch (Exception e) {
+				int maxAttempts = SystemProperties.getAsInt(PingOneProtectCompletionDispatcher.MAX_ATTEMPTS, 5);
+				if (++entry.failedReplays >= maxAttempts) {
+					logger.warn("{}Giving up on completion update for {}", loggerPrefix, entry.riskEvalId, e);
+					ack(entry.id);
+				} else {
+					logger.warn("{}Unable to replay completion update for {}", loggerPrefix, entry.riskEvalId, e);
+				}
+			}
+		}
+		if (count > 0) {
+			logger.info("{}Replayed {} pending completion updates", loggerPrefix, count);
+		}
+	}
+
+	/**
+	 * Read the segments left by the previous run and rebuild the pending updates.
+	 */
+	private void recover() throws IOException {
+		List<Path> paths = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory,
+				SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+			stream.forEach(paths::add);
+		}
+		paths.sort(null);
+		for (Path path : paths) {
+			String name = path.getFileName().toString();
+			long seq = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+			Segment segment = new Segment(seq, path);
+			segment.size = read(segment);
+			segments.put(seq, segment);
+			totalBytes += segment.size;
+		}
+		for (Entry entry : entries.values()) {
+			segments.get(entry.segment).live++;
+		}
+	}
+
+	/**
+	 * Read a segment, a torn record at the end of the segment is truncated.
+	 *
+	 * @return The valid length of the segment
+	 */
+	private long read(Segment segment) throws IOException {
+		long valid = 0;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(segment.path)))) {
+			while (true) {
+				int length = in.readInt();
+				if (length <= 0 || length > segmentSize) {
+					break;
+				}
+				long checksum = in.readInt() & 0xffffffffL;
+				byte[] payload = new byte[length];
+				in.readFully(payload);
+				CRC32 crc = new CRC32();
+				crc.update(payload);
+				if (crc.getValue() != checksum) {
+					break;
+				}
+				decode(payload, segment.seq);
+				valid += Integer.BYTES * 2 + length;
+			}
+		} catch (EOFException e) {
+			// End of the segment, or a record torn by a crash.
+		}
+		if (valid < Files.size(segment.path)) {
+			logger.warn("{}Truncating torn record at {} in {}", loggerPrefix, valid, segment.path);
+			try (FileChannel channel = FileChannel.open(segment.path, StandardOpenOption.WRITE)) {
+				channel.truncate(valid);
+			}
+		}
+		return valid;
+	}
+
+	private void decode(byte[] payload, long seq) throws IOException {
+		try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload))) {
+			byte type = in.readByte();
+			long id = in.readLong();
+			if (type == ENQUEUE) {
+				Entry entry = new Entry(id, in.readUTF(), in.readUTF(), in.readUTF(), in.readUTF());
+				entry.segment = seq;
+				// Left over from the previous run, due for delivery straight away.
+				entry.submittedAt = 0;
+				entries.put(id, entry);
+			} else if (type == ACK) {
+				entries.remove(id);
+			}
+			nextId = Math.max(nextId, id + 1);
+		}
+	}
+
+	private static ByteBuffer encode(byte type, long id, Entry entry) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+		try (DataOutputStream out = new DataOutputStream(bytes)) {
+			out.writeByte(type);
+			out.writeLong(id);
+			if (entry != null) {
+				out.writeUTF(entry.realmPath);
+				out.writeUTF(entry.workerName);
+				out.writeUTF(entry.riskEvalId);
+				out.writeUTF(entry.status);
+			}
+		}
+		byte[] payload = bytes.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		ByteBuffer record = ByteBuffer.allocate(Integer.BYTES * 2 + payload.length);
+		record.putInt(payload.length).putInt((int) crc.getValue()).put(payload).flip();
+		return record;
+	}
+
+	/**
+	 * A journal segment file.
+	 */
+	private static final class Segment {
+		private final long seq;
+		private final Path path;
+		private FileChannel channel;
+		private long size;
+		private int live;
+
+		private Segment(long seq, Path path) {
+			this.seq = seq;
+			this.path = path;
+		}
+	}
+
+	/**
+	 * A journaled completion update.
+	 */
+	private static final class Entry {
+		private final long id;
+		private final String realmPath;
+		private final String workerName;
+		private final String riskEvalId;
+		private final String status;
+		private volatile long segment;
+		private volatile long submittedAt;
+		private int failedReplays;
+
+		private Entry(long id, String realmPath, String workerName, String riskEvalId, String status) {
+			this.id = id;
+			this.realmPath = realmPath;
+			this.workerName = workerName;
+			this.riskEvalId = riskEvalId;
+			this.status = status;
+			this.submittedAt = System.currentTimeMillis();
+		}
+	}
+}
@@ -0,0 +1,283 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.pingone;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.forgerock.openam.auth.service.marketplace.TNTPPingOneConfig;
+import org.forgerock.openam.core.realms.Realm;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.iplanet.am.util.SystemProperties;
+
+/**
+ * Risk evaluations started by the {@link PingOneProtectEvaluationNode} in asynchronous mode, awaited later in the
+ * journey by the {@link PingOneProtectAwaitResultNode}.
+ * <p>
+ * The evaluation runs on a bounded pool and its outcome is parked under a random handle kept in the shared state of
+ * the journey, so that the PingOne round trip overlaps with the nodes in between. Pending evaluations expire after a
+ * time to live, and are not shared between AM servers: when the await reaches another server the handle is not
+ * found. An outcome that expires or is evicted without being taken is only counted, its risk evaluation is left
+ * to the journey: a {@link PingOneProtectResultNode} reached before the evaluation completes takes the pending
+ * evaluation and completes it once it is done.
+ * </p>
+ */
+final class PingOneProtectPendingEvaluations {
+
+	static final String PROPERTY_PREFIX = "org.forgerock.am.marketplace.pingone.asyncEvaluation.";
+	static final String MAX_SIZE = PROPERTY_PREFIX + "maxSize";
+	static final String TTL = PROPERTY_PREFIX + "ttlSeconds";
+	static final String CONCURRENCY = PROPERTY_PREFIX + "concurrency";
+
+	/**
+	 * Interval of the expiry of the outcomes not taken, which the cache otherwise only runs on writes.
+	 */
+	private static final long CLEAN_UP_INTERVAL = 10;
+
+	private static final PingOneProtectPendingEvaluations INSTANCE = new PingOneProtectPendingEvaluations();
+
+	private final Cache<String, CompletableFuture<Completed>> pending = CacheBuilder.newBuilder()
+			.maximumSize(SystemProperties.getAsInt(MAX_SIZE, 10000))
+			.expireAfterWrite(Math.max(SystemProperties.getAsInt(TTL, 300), 1), TimeUnit.SECONDS)
+			.removalListener(this::removed)
+			.build();
+	private final LongAdder rejected = new LongAdder();
+	private final LongAdder expired = new LongAdder();
+	private ThreadPoolExecutor executor;
+	private ScheduledExecutorService cleaner;
+	private boolean stopped;
+
+	private PingOneProtectPendingEvaluations() {
+	}
+
+	/**
+	 * Get the pending evaluations instance.
+	 *
+	 * @return The pending evaluations
+	 */
+	static PingOneProtectPendingEvaluations getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Start a risk evaluation in the background.
+	 *
+	 * @param handle     The handle the evaluation is parked under
+	 * @param evaluation Calls PingOne and decides the outcome
+	 * @return false if the pool is saturated or shut down, and the evaluation was not started
+	 */
+	boolean start(String handle, Callable<Completed> evaluation) {
+		CompletableFuture<Completed> future = new CompletableFuture<>();
+		pending.put(handle, future);
+		try {
+			executor().execute(() -> {
+				try {
+					future.complete(evaluation.call());
+				} catch (Throwable e) {
+					future.completeExceptionally(e);
+				}
+			});
+			return true;
+		} catch (RejectedExecutionException e) {
+			pending.invalidate(handle);
+			rejected.increment();
+			return false;
+		}
+	}
+
+	/**
+	 * Park an evaluation that is already complete, such as a cached result.
+	 *
+	 * @param handle    The handle the evaluation is parked under
+	 * @param completed The completed evaluation
+	 */
+	void complete(String handle, Completed completed) {
+		pending.put(handle, CompletableFuture.completedFuture(completed));
+	}
+
+	/**
+	 * Get the evaluation parked under a handle.
+	 *
+	 * @param handle The handle
+	 * @return The evaluation, or null if there is none
+	 */
+	CompletableFuture<Completed> get(String handle) {
+		return pending.getIfPresent(handle);
+	}
+
+	/**
+	 * Take the evaluation parked under a handle, for a node that needs the risk evaluation without awaiting it.
+	 *
+	 * @param handle The handle
+	 * @return The evaluation, possibly still running, or null if there is none
+	 */
+	CompletableFuture<Completed> take(String handle) {
+		CompletableFuture<Completed> future = pending.getIfPresent(handle);
+		if (future != null) {
+			pending.invalidate(handle);
+		}
+		return future;
+	}
+
+	/**
+	 * Drop the evaluation parked under a handle, once its outcome has been taken.
+	 *
+	 * @param handle The handle
+	 */
+	void remove(String handle) {
+		pending.invalidate(handle);
+	}
+
+	/**
+	 * Number of evaluations run synchronously because the pool was saturated.
+	 *
+	 * @return The rejected count
+	 */
+	long rejected() {
+		return rejected.sum();
+	}
+
+	/**
+	 * Number of evaluations whose outcome expired or was evicted without being taken.
+	 *
+	 * @return The expired count
+	 */
+	long expired() {
+		return expired.sum();
+	}
+
+	/**
+	 * Start evaluations in the background again after a shutdown. Called when the plugin starts.
+	 */
+	synchronized void start() {
+		stopped = false;
+		if (cleaner == null) {
+			cleaner = Executors.newSingleThreadScheduledExecutor(
+					new ThreadFactoryBuilder().setNameFormat("PingOneProtect-cleaner-%d").setDaemon(true).build());
+			cleaner.scheduleWithFixedDelay(pending::cleanUp, CLEAN_UP_INTERVAL, CLEAN_UP_INTERVAL, TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * Stop the background threads and drop the pending evaluations. Called when the plugin shuts down, the
+	 * evaluations started afterwards run synchronously.
+	 */
+	synchronized void shutdown() {
+		stopped = true;
+		if (cleaner != null) {
+			cleaner.shutdownNow();
+			cleaner = null;
+		}
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+		pending.invalidateAll();
+	}
+
+	private void removed(RemovalNotification<String, CompletableFuture<Completed>> notification) {
+		// Explicit removals are taken outcomes, evaluations that could not start or a shutdown.
+		if (notification.wasEvicted()) {
+			expired.increment();
+		}
+	}
+
+	private synchronized ThreadPoolExecutor executor() {
+		if (stopped) {
+			throw new RejectedExecutionException("Asynchronous evaluation is shut down");
+		}
+		if (executor == null) {
+			int concurrency = Math.max(SystemProperties.getAsInt(CONCURRENCY, 32), 1);
+			executor = new ThreadPoolExecutor(concurrency, concurrency, 60, TimeUnit.SECONDS,
+					new ArrayBlockingQueue<>(concurrency * 32),
+					new ThreadFactoryBuilder().setNameFormat("PingOneProtect-async-%d").setDaemon(true).build());
+			executor.allowCoreThreadTimeOut(true);
+		}
+		return executor;
+	}
+
+	/**
+	 * A completed risk evaluation and the state the awaiting node stores for it.
+	 */
+	static final class Completed {
+		private final RiskResult result;
+		private final String outcome;
+		private final Realm realm;
+		private final String workerName;
+		private final TNTPPingOneConfig worker;
+		private final boolean compactState;
+		private final boolean storeEvaluateResult;
+		private final boolean cached;
+
+		Completed(RiskResult result, String outcome, Realm realm, String workerName, TNTPPingOneConfig worker,
+				boolean compactState, boolean storeEvaluateResult, boolean cached) {
+			this.result = result;
+			this.outcome = outcome;
+			this.realm = realm;
+			this.workerName = workerName;
+			this.worker = worker;
+			this.compactState = compactState;
+			this.storeEvaluateResult = storeEvaluateResult;
+			this.cached = cached;
+		}
+
+		RiskResult getResult() {
+			return result;
+		}
+
+		/**
+		 * The outcome decided by the Evaluation node configuration.
+		 *
+		 * @return The outcome id
+		 */
+		String getOutcome() {
+			return outcome;
+		}
+
+		Realm getRealm() {
+			return realm;
+		}
+
+		String getWorkerName() {
+			return workerName;
+		}
+
+		TNTPPingOneConfig getWorker() {
+			return worker;
+		}
+
+		boolean isCompactState() {
+			return compactState;
+		}
+
+		boolean isStoreEvaluateResult() {
+			return storeEvaluateResult;
+		}
+
+		/**
+		 * Whether the result was taken from the result cache, its evaluation is completed by another journey.
+		 *
+		 * @return true if the result is cached
+		 */
+		boolean isCached() {
+			return cached;
+		}
+	}
+}
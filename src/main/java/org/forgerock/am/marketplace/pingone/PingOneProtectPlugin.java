@@ -14,6 +14,7 @@ import java.util.Map;
 
 import org.forgerock.openam.auth.node.api.AbstractNodeAmPlugin;
 import org.forgerock.openam.auth.node.api.Node;
+import org.forgerock.openam.auth.node.api.NodeProcessException;
 import org.forgerock.openam.plugins.PluginException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -52,7 +53,11 @@ import com.google.common.collect.ImmutableMap;
  */
 public class PingOneProtectPlugin extends AbstractNodeAmPlugin {
 
-	static private String currentVersion = "1.0.1";
+	static private String currentVersion = "1.12.0";
+	/**
+	 * The version that added the {@link PingOneProtectAwaitResultNode}.
+	 */
+	static private final String awaitResultVersion = "1.10.0";
 	static final String logAppender = "[Version: " + currentVersion + "][Marketplace] ";
 	private final Logger logger = LoggerFactory.getLogger(PingOneProtectPlugin.class);
 	private String loggerPrefix = "[PingOneProtectPlugin]" + PingOneProtectPlugin.logAppender;
@@ -66,10 +71,12 @@ public class PingOneProtectPlugin extends AbstractNodeAmPlugin {
 	@Override
     protected Map<String, Iterable<? extends Class<? extends Node>>> getNodesByVersion() {
         return new ImmutableMap.Builder<String, Iterable<? extends Class<? extends Node>>>()
-                .put(currentVersion, asList(
+                .put("1.0.1", asList(
                         PingOneProtectInitializeNode.class,
                         PingOneProtectEvaluationNode.class,
-                        PingOneProtectResultNode.class)).build();
+                        PingOneProtectResultNode.class))
+                .put(awaitResultVersion, asList(
+                        PingOneProtectAwaitResultNode.class)).build();
     }
 
     /** 
@@ -94,6 +101,36 @@ public class PingOneProtectPlugin extends AbstractNodeAmPlugin {
 	@Override
 	public void onStartup() throws PluginException {
 		super.onStartup();
+		try {
+			ScriptHelper.loadTemplates();
+		} catch (NodeProcessException e) {
+			throw new PluginException(e.getMessage());
+		}
+		PingOneProtectWorkerRegistry.getInstance().start();
+		PingOneProtectHttpClient.start();
+		PingOneProtectOutbox.getInstance().start();
+		PingOneProtectPrefetch.getInstance().start();
+		PingOneProtectFanOut.getInstance().start();
+		PingOneProtectPendingEvaluations.getInstance().start();
+	}
+
+    /** 
+     * Handle plugin shutdown. Release the resources shared by the nodes, such as the pooled HTTP clients.
+     */
+	@Override
+	public void onShutdown() {
+		PingOneProtectPrefetch.getInstance().shutdown();
+		PingOneProtectFanOut.getInstance().shutdown();
+		PingOneProtectPendingEvaluations.getInstance().shutdown();
+		PingOneProtectCompletionDispatcher.getInstance().shutdown();
+		PingOneProtectOutbox.getInstance().shutdown();
+		PingOneProtectTokenManager.getInstance().shutdown();
+		PingOneProtectHttpClient.shutdown();
+		PingOneProtectWorkerRegistry.getInstance().shutdown();
+		PingOneProtectIdentityCache.getInstance().shutdown();
+		PingOneProtectMetrics.shutdown();
+		PingOneProtectSdkHandler.getInstance().shutdown();
+		super.onShutdown();
 	}
 
     /** 
@@ -106,18 +143,48 @@ public class PingOneProtectPlugin extends AbstractNodeAmPlugin {
      */	
 	@Override
 	public void upgrade(String fromVersion) throws PluginException {
-		logger.error(loggerPrefix + "fromVersion = " + fromVersion);
-		logger.error(loggerPrefix + "currentVersion = " + currentVersion);
+		logger.error("{}fromVersion = {}", loggerPrefix, fromVersion);
+		logger.error("{}currentVersion = {}", loggerPrefix, currentVersion);
 		try {
 			pluginTools.upgradeAuthNode(PingOneProtectInitializeNode.class);
 			pluginTools.upgradeAuthNode(PingOneProtectEvaluationNode.class);
 			pluginTools.upgradeAuthNode(PingOneProtectResultNode.class);
+			if (!isBefore(fromVersion, awaitResultVersion)) {
+				pluginTools.upgradeAuthNode(PingOneProtectAwaitResultNode.class);
+			}
 		} catch (Exception e) {
 			throw new PluginException(e.getMessage());
 		}
+		// Installs the nodes added after the installed version.
 		super.upgrade(fromVersion);
 	}
 
+	/**
+	 * Compare two dotted versions numerically.
+	 *
+	 * @param version The version
+	 * @param other   The version to compare to
+	 * @return true if the version is lower than the other version
+	 */
+	static boolean isBefore(String version, String other) {
+		String[] parts = version.split("\\.");
+		String[] otherParts = other.split("\\.");
+		for (int i = 0; i < Math.max(parts.length, otherParts.length); i++) {
+			int part = versionPart(parts, i);
+			int otherPart = versionPart(otherParts, i);
+			if (part != otherPart) {
+				return part < otherPart;
+			}
+		}
+		return false;
+	}
+
+	private static int versionPart(String[] parts, int index) {
+		// Ignore qualifiers such as -SNAPSHOT.
+		String digits = index < parts.length ? parts[index].replaceAll("\\D.*", "") : "";
+		return digits.isEmpty() ? 0 : Integer.parseInt(digits);
+	}
+
     /** 
      * The plugin version. This must be in semver (semantic version) format.
      *
@@ -0,0 +1,227 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.pingone;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.iplanet.am.util.SystemProperties;
+
+/**
+ * Work started by the {@link PingOneProtectEvaluationNode} while the client collects the signals.
+ * <p>
+ * When the node sends its callbacks, the access token and the user are resolved in the background and parked under
+ * a random nonce kept in the shared state of the journey. On the return trip the node takes the parked results
+ * instead of resolving them again. Parked results expire after a short time to live, and are not shared between AM
+ * servers: when the return trip reaches another server, or the prefetch failed, the node resolves them as usual.
+ * </p>
+ */
+final class PingOneProtectPrefetch {
+
+	private static final Logger logger = LoggerFactory.getLogger(PingOneProtectPrefetch.class);
+	private static final String loggerPrefix = "[PingOneProtectPrefetch]" + PingOneProtectPlugin.logAppender;
+
+	static final String PROPERTY_PREFIX = "org.forgerock.am.marketplace.pingone.prefetch.";
+	static final String MAX_SIZE = PROPERTY_PREFIX + "maxSize";
+	static final String TTL = PROPERTY_PREFIX + "ttlSeconds";
+	static final String CONCURRENCY = PROPERTY_PREFIX + "concurrency";
+
+	private static final PingOneProtectPrefetch INSTANCE = new PingOneProtectPrefetch();
+
+	private final Cache<String, Prefetched> parked = CacheBuilder.newBuilder()
+			.maximumSize(SystemProperties.getAsInt(MAX_SIZE, 10000))
+			.expireAfterWrite(Math.max(SystemProperties.getAsInt(TTL, 120), 1), TimeUnit.SECONDS)
+			.build();
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+	private ThreadPoolExecutor executor;
+	private boolean stopped;
+
+	private PingOneProtectPrefetch() {
+	}
+
+	/**
+	 * Get the prefetch instance.
+	 *
+	 * @return The prefetch
+	 */
+	static PingOneProtectPrefetch getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Start resolving the access token and the user in the background.
+	 *
+	 * @param nonce The nonce the results are parked under
+	 * @param token Retrieves the access token
+	 * @param user  Resolves the user
+	 */
+	void start(String nonce, Callable<String> token, Callable<Event.User> user) {
+		try {
+			ThreadPoolExecutor executor = executor();
+			CompletableFuture<String> tokenFuture = CompletableFuture.supplyAsync(unchecked(token), executor);
+			CompletableFuture<Event.User> userFuture = CompletableFuture.supplyAsync(unchecked(user), executor);
+			parked.put(nonce, new Prefetched(tokenFuture, userFuture));
+		} catch (RejectedExecutionException e) {
+			// Busy or shut down, the node resolves them on the return trip.
+			rejected.increment();
+		}
+	}
+
+	/**
+	 * Take the results parked under a nonce.
+	 *
+	 * @param nonce The nonce
+	 * @return The results, or null if there are none
+	 */
+	Prefetched take(String nonce) {
+		Prefetched prefetched = parked.asMap().remove(nonce);
+		if (prefetched == null) {
+			misses.increment();
+		} else {
+			hits.increment();
+		}
+		return prefetched;
+	}
+
+	/**
+	 * Number of return trips that found their parked results.
+	 *
+	 * @return The hit count
+	 */
+	long hits() {
+		return hits.sum();
+	}
+
+	/**
+	 * Number of return trips without parked results.
+	 *
+	 * @return The miss count
+	 */
+	long misses() {
+		return misses.sum();
+	}
+
+	/**
+	 * Number of prefetches not started because the executor was busy.
+	 *
+	 * @return The rejected count
+	 */
+	long rejected() {
+		return rejected.sum();
+	}
+
+	/**
+	 * Allow prefetching again after a shutdown. Called when the plugin starts.
+	 */
+	synchronized void start() {
+		stopped = false;
+	}
+
+	/**
+	 * Stop the background threads and drop the parked results. Called when the plugin shuts down, no prefetch is
+	 * started afterwards.
+	 */
+	synchronized void shutdown() {
+		stopped = true;
+		if (executor != null) {
+			executor.shutdownNow();
+			executor = null;
+		}
+		parked.invalidateAll();
+	}
+
+	private synchronized ThreadPoolExecutor executor() {
+		if (stopped) {
+			throw new RejectedExecutionException("Prefetch is shut down");
+		}
+		if (executor == null) {
+			int concurrency = Math.max(SystemProperties.getAsInt(CONCURRENCY, 8), 1);
+			executor = new ThreadPoolExecutor(concurrency, concurrency, 60, TimeUnit.SECONDS,
+					new ArrayBlockingQueue<>(concurrency * 64),
+					new ThreadFactoryBuilder().setNameFormat("PingOneProtect-prefetch-%d").setDaemon(true).build());
+			executor.allowCoreThreadTimeOut(true);
+		}
+		return executor;
+	}
+
+	private static <T> Supplier<T> unchecked(Callable<T> callable) {
+		return () -> {
+			try {
+				return callable.call();
+			} catch (RuntimeException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new IllegalStateException(e);
+			}
+		};
+	}
+
+	/**
+	 * The access token and user resolved for a journey.
+	 */
+	static final class Prefetched {
+		private final CompletableFuture<String> token;
+		private final CompletableFuture<Event.User> user;
+
+		private Prefetched(CompletableFuture<String> token, CompletableFuture<Event.User> user) {
+			this.token = token;
+			this.user = user;
+		}
+
+		/**
+		 * Get the access token, waiting for it until the deadline.
+		 *
+		 * @param deadline The deadline of the risk evaluation
+		 * @return The access token, or null if it could not be retrieved
+		 */
+		String getAccessToken(Deadline deadline) {
+			return get(token, deadline, "access token");
+		}
+
+		/**
+		 * Get the user, waiting for it until the deadline.
+		 *
+		 * @param deadline The deadline of the risk evaluation
+		 * @return The user, or null if it could not be resolved
+		 */
+		Event.User getUser(Deadline deadline) {
+			return get(user, deadline, "user");
+		}
+
+		private static <T> T get(CompletableFuture<T> future, Deadline deadline, String name) {
+			try {
+				return deadline.isBounded()
+						? future.get(deadline.remainingMillis(), TimeUnit.MILLISECONDS)
+						: future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return null;
+			} catch (ExecutionException | TimeoutException e) {
+				logger.debug("{}Prefetched {} not available", loggerPrefix, name, e);
+				return null;
+			}
+		}
+	}
+}
@@ -0,0 +1,155 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.pingone;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.iplanet.am.util.SystemProperties;
+
+/**
+ * Short lived cache of risk evaluation results, so that an evaluation repeated for the same request fingerprint
+ * (e.g. a retry or a double submit) does not call PingOne again.
+ * <p>
+ * Entries are keyed by a SHA-256 digest of the fingerprint, so that no user data is kept in the keys. The cache is
+ * bounded in size and evicts the least recently used entries. Each entry expires after the time to live of the node
+ * that stored it, capped by the maximum time to live of the cache.
+ * </p>
+ */
+final class PingOneProtectResultCache {
+
+	static final String PROPERTY_PREFIX = "org.forgerock.am.marketplace.pingone.resultCache.";
+	static final String MAX_SIZE = PROPERTY_PREFIX + "maxSize";
+	static final String MAX_TTL = PROPERTY_PREFIX + "maxTtlSeconds";
+
+	private static final PingOneProtectResultCache INSTANCE = new PingOneProtectResultCache();
+
+	private final Cache<String, Entry> cache = CacheBuilder.newBuilder()
+			.maximumSize(SystemProperties.getAsInt(MAX_SIZE, 100000))
+			.expireAfterWrite(SystemProperties.getAsInt(MAX_TTL, 3600), TimeUnit.SECONDS)
+			.build();
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	private PingOneProtectResultCache() {
+	}
+
+	/**
+	 * Get the result cache instance.
+	 *
+	 * @return The result cache
+	 */
+	static PingOneProtectResultCache getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Get a cached result.
+	 *
+	 * @param fingerprint   The request fingerprint
+	 * @param needsResponse True if the full response is required
+	 * @return The cached result, or null
+	 */
+	RiskResult get(String fingerprint, boolean needsResponse) {
+		Entry entry = cache.getIfPresent(fingerprint);
+		if (entry == null || entry.expiresAt < System.currentTimeMillis()
+				|| (needsResponse && entry.result.getResponse() == null)) {
+			misses.increment();
+			return null;
+		}
+		hits.increment();
+		return entry.result;
+	}
+
+	/**
+	 * Cache a result.
+	 *
+	 * @param fingerprint The request fingerprint
+	 * @param result      The risk result
+	 * @param ttl         The time to live in seconds
+	 */
+	void put(String fingerprint, RiskResult result, long ttl) {
+		cache.put(fingerprint, new Entry(result, System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(ttl)));
+	}
+
+	/**
+	 * Number of evaluations served from the cache.
+	 *
+	 * @return The hit count
+	 */
+	long hits() {
+		return hits.sum();
+	}
+
+	/**
+	 * Number of evaluations not found in the cache.
+	 *
+	 * @return The miss count
+	 */
+	long misses() {
+		return misses.sum();
+	}
+
+	/**
+	 * Number of cached results.
+	 *
+	 * @return The cache size
+	 */
+	long size() {
+		return cache.size();
+	}
+
+	/**
+	 * Drop all cached results.
+	 */
+	void clear() {
+		cache.invalidateAll();
+	}
+
+	/**
+	 * Digest the request attributes into a fingerprint.
+	 *
+	 * @param parts The request attributes, null values are allowed
+	 * @return The fingerprint
+	 */
+	static String fingerprint(String... parts) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			for (String part : parts) {
+				if (part != null) {
+					digest.update(part.getBytes(StandardCharsets.UTF_8));
+				}
+				// Separator, so that moving characters between parts changes the fingerprint.
+				digest.update((byte) 0);
+			}
+			return Base64.getEncoder().withoutPadding().encodeToString(digest.digest());
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * A cached result and its expiry.
+	 */
+	private static final class Entry {
+		private final RiskResult result;
+		private final long expiresAt;
+
+		private Entry(RiskResult result, long expiresAt) {
+			this.result = result;
+			this.expiresAt = expiresAt;
+		}
+	}
+}
@@ -8,16 +8,18 @@
 
 package org.forgerock.am.marketplace.pingone;
 
+import static org.forgerock.am.marketplace.pingone.PingOneProtectEvaluationNode.StateKey.PENDING_EVALUATION;
 import static org.forgerock.am.marketplace.pingone.PingOneProtectEvaluationNode.StateKey.PINGONE_PROTECT_WORKER;
 import static org.forgerock.am.marketplace.pingone.PingOneProtectEvaluationNode.StateKey.RISK_EVALUATE_ID;
+import static org.forgerock.am.marketplace.pingone.PingOneProtectEvaluationNode.StateKey.RISK_REFERENCE;
 import static org.forgerock.json.JsonValue.field;
 import static org.forgerock.json.JsonValue.json;
 import static org.forgerock.json.JsonValue.object;
 
 import java.net.URI;
-import java.util.Date;
 import java.util.List;
 import java.util.ResourceBundle;
+import java.util.concurrent.CompletableFuture;
 
 import javax.inject.Inject;
 
@@ -38,8 +40,6 @@ import org.forgerock.openam.auth.node.api.NodeProcessException;
 import org.forgerock.openam.auth.node.api.NodeState;
 import org.forgerock.openam.auth.node.api.TreeContext;
 import org.forgerock.openam.auth.service.marketplace.TNTPPingOneConfig;
-import org.forgerock.openam.auth.service.marketplace.TNTPPingOneConfigChoiceValues;
-import org.forgerock.openam.auth.service.marketplace.TNTPPingOneUtility;
 import org.forgerock.openam.core.realms.Realm;
 import org.forgerock.openam.http.HttpConstants;
 import org.forgerock.services.context.RootContext;
@@ -59,7 +59,8 @@ import com.google.inject.assistedinject.Assisted;
 		"marketplace", "trustnetwork" })
 public class PingOneProtectResultNode extends AbstractDecisionNode  {
 	private static final Logger logger = LoggerFactory.getLogger(PingOneProtectResultNode.class);
-	private String loggerPrefix = "[PingOneProtectResultNode]" + PingOneProtectPlugin.logAppender;
+	private static final String loggerPrefix = "[PingOneProtectResultNode]" + PingOneProtectPlugin.logAppender;
+	private static final PingOneProtectErrorReporter errors = new PingOneProtectErrorReporter(logger, loggerPrefix);
 	/**
 	 * SharedState variable name to store the evaluation completion result.
 	 */
@@ -89,6 +90,16 @@ public class PingOneProtectResultNode extends AbstractDecisionNode  {
 		default CompletionStatus status() {
 			return CompletionStatus.SUCCESS;
 		}		
+
+		/**
+		 * Send the completion status in the background and continue the journey without waiting for PingOne.
+		 *
+		 * @return {@literal true} to queue the update.
+		 */
+		@Attribute(order = 300)
+		default boolean asyncUpdate() {
+			return false;
+		}
 		
 	}
 
@@ -109,14 +120,39 @@ public class PingOneProtectResultNode extends AbstractDecisionNode  {
 	public Action process(TreeContext context) throws NodeProcessException {
 		NodeState state = context.getStateFor(this);
 		try {
-			
-			JsonValue riskId = state.get(RISK_EVALUATE_ID);
-			JsonValue worker = state.get(PINGONE_PROTECT_WORKER);
+			if (takePendingEvaluation(state)) {
+				// Best effort, the update is queued once the evaluation completes.
+				state.putShared(RISK_EVALUATE_COMPLETION_RESULT, true);
+				return Action.goTo(NEXT).build();
+			}
+
+			String riskId = null;
+			String worker = null;
+			JsonValue reference = state.get(RISK_REFERENCE);
+			if (reference != null && reference.isString()) {
+				RiskReference riskReference = RiskReference.decode(reference.asString());
+				riskId = riskReference.getRiskEvalId();
+				worker = riskReference.getWorkerName();
+			} else {
+				JsonValue riskIdValue = state.get(RISK_EVALUATE_ID);
+				JsonValue workerValue = state.get(PINGONE_PROTECT_WORKER);
+				riskId = riskIdValue == null ? null : riskIdValue.asString();
+				worker = workerValue == null ? null : workerValue.asString();
+			}
 			if (riskId != null && worker != null) {
-				TNTPPingOneConfig tntpPingOneConfig = TNTPPingOneConfigChoiceValues.getTNTPPingOneConfig(worker.asString());
-				TNTPPingOneUtility tntpP1U = TNTPPingOneUtility.getInstance();
-				String accessToken = tntpP1U.getAccessToken(realm, tntpPingOneConfig);
-				event(accessToken, tntpPingOneConfig, riskId.asString(), config.status().name());
+				TNTPPingOneConfig tntpPingOneConfig = PingOneProtectWorkerRegistry.getInstance().get(worker);
+				if (config.asyncUpdate()) {
+					// Best effort, the result only reflects whether the update has been queued.
+					boolean queued = PingOneProtectCompletionDispatcher.getInstance().submit(realm, worker,
+							tntpPingOneConfig, riskId, config.status().name());
+					state.putShared(RISK_EVALUATE_COMPLETION_RESULT, queued);
+					return Action.goTo(NEXT).build();
+				}
+				PingOneProtectMetrics metrics = PingOneProtectMetrics.forWorker(realm, worker);
+				long tokenStart = System.nanoTime();
+				String accessToken = PingOneProtectTokenManager.getInstance().getAccessToken(realm, tntpPingOneConfig);
+				metrics.recordToken(System.nanoTime() - tokenStart);
+				updateCompletionStatus(accessToken, tntpPingOneConfig, riskId, config.status().name(), metrics);
 				state.putShared(RISK_EVALUATE_COMPLETION_RESULT, true);
 			} else {
 				// Best effort to update the result, we don't want to fail the Journey
@@ -125,11 +161,7 @@ public class PingOneProtectResultNode extends AbstractDecisionNode  {
 			}
 			return Action.goTo(NEXT).build();
 		} catch (Exception e) {
-			String stackTrace = org.apache.commons.lang.exception.ExceptionUtils.getStackTrace(e);
-
-			logger.error(loggerPrefix + "Exception occurred: " + stackTrace);
-			context.getStateFor(this).putTransient(loggerPrefix + "Exception", new Date() + ": " + e.getMessage());
-			context.getStateFor(this).putTransient(loggerPrefix + "StackTrace", new Date() + ": " + stackTrace);
+			errors.report(state, e);
 			state.putShared(RISK_EVALUATE_COMPLETION_RESULT, false);
 			return Action.goTo(ERROR).withHeader("Error occurred").withErrorMessage(e.getMessage()).build();
 			
@@ -137,6 +169,43 @@ public class PingOneProtectResultNode extends AbstractDecisionNode  {
 
 	}
 	
+	/**
+	 * Take the asynchronous evaluation that was not awaited. When it has completed its risk evaluation id is stored,
+	 * to be completed as usual. When it is still running, e.g. the Await Result node timed out, the completion
+	 * status of this node is sent once it completes.
+	 *
+	 * @return true if the completion status is sent when the pending evaluation completes
+	 */
+	private boolean takePendingEvaluation(NodeState state) {
+		JsonValue handle = state.get(PENDING_EVALUATION);
+		if (handle == null || !handle.isString()) {
+			return false;
+		}
+		state.remove(PENDING_EVALUATION);
+		CompletableFuture<PingOneProtectPendingEvaluations.Completed> future =
+				PingOneProtectPendingEvaluations.getInstance().take(handle.asString());
+		if (future == null) {
+			return false;
+		}
+		if (!future.isDone()) {
+			String status = config.status().name();
+			future.thenAccept(completed -> {
+				// A cached result is completed by the journey that evaluated it.
+				if (!completed.isCached()) {
+					PingOneProtectCompletionDispatcher.getInstance().submit(completed.getRealm(),
+							completed.getWorkerName(), completed.getWorker(), completed.getResult().getId(), status);
+				}
+			});
+			return true;
+		}
+		if (!future.isCompletedExceptionally()) {
+			PingOneProtectPendingEvaluations.Completed completed = future.join();
+			PingOneProtectEvaluationNode.storeResult(state, completed.getResult(), completed.getWorkerName(),
+					completed.isCompactState(), false, completed.isCached());
+		}
+		return false;
+	}
+
 	/**
 	 * Use PUT /environments/{{envID}}/riskEvaluations/{{riskID}}/event to update
 	 * the risk evaluation configuration, and to modify the completion status of the
@@ -151,28 +220,55 @@ public class PingOneProtectResultNode extends AbstractDecisionNode  {
 	 */
 	public JsonValue event(String accessToken, TNTPPingOneConfig worker, String riskEvalId, String status)
 			throws Exception {
+		String workerName = PingOneProtectWorkerRegistry.getInstance().nameOf(worker);
+		return updateCompletionStatus(accessToken, worker, riskEvalId, status,
+				PingOneProtectMetrics.forWorker(realm, workerName != null ? workerName : worker.id()));
+	}
+
+	/**
+	 * Send the completion status of a risk evaluation, shared with the {@link PingOneProtectCompletionDispatcher}.
+	 *
+	 * @param accessToken The {@link AccessToken}
+	 * @param worker      The worker
+	 * @param riskEvalId  The risk evaluation id
+	 * @param status      The completion status
+	 * @param metrics     The metrics of the realm and worker
+	 * @return The response from /environments/{{envID}}/riskEvaluations operation
+	 * @throws Exception When API response != 200
+	 */
+	static JsonValue updateCompletionStatus(String accessToken, TNTPPingOneConfig worker, String riskEvalId,
+			String status, PingOneProtectMetrics metrics) throws Exception {
 		Request request = null;
-		HttpClientHandler handler = null;
+		Response response = null;
+		long start = System.nanoTime();
 		try {
-			handler = new HttpClientHandler();
-			URI uri = URI.create(PingOneProtectEvaluationNode.endpoint + worker.environmentRegion().getDomainSuffix() + "/v1/environments/" + worker.environmentId()
+			HttpClientHandler handler = PingOneProtectHttpClient.handlerFor(worker);
+			URI uri = URI.create(PingOneProtectHttpClient.baseUrl(worker) + "/v1/environments/" + worker.environmentId()
 					+ "/riskEvaluations/" + riskEvalId + "/event");
 			request = new Request().setUri(uri).setMethod(HttpConstants.Methods.PUT);
 			request.getEntity().setJson(object(field("completionStatus", status)));
 			addAuthorizationHeader(request, accessToken);
-			Response response = handler.handle(new RootContext(), request).getOrThrow();
+			response = handler.handle(new RootContext(), request).getOrThrow();
+			metrics.recordStatus(response.getStatus().getCode());
+			metrics.recordResponseSize(PingOneProtectEvaluationNode.contentLength(response));
 			if (response.getStatus() == Status.OK) {
 				return json(response.getEntity().getJson());
 			} else {
-				throw new Exception("PingOne Update Risk Evaluation API response with error." + response.getStatus()
-						+ "-" + response.getEntity().getString());
+				throw new PingOneApiException("PingOne Update Risk Evaluation API response with error."
+						+ response.getStatus() + "-" + response.getEntity().getString(), response.getStatus().getCode(),
+						response.getCause());
 			}
 		} catch (Exception e) {
 			throw new Exception("Failed to update risk evaluation", e);
 		} finally {
-			if (handler != null) {
+			metrics.recordEvent(System.nanoTime() - start);
+			if (response == null) {
+				metrics.recordStatus(0);
+			}
+			// Release the pooled connection, the handler itself is shared and closed on plugin shutdown.
+			if (response != null) {
 				try {
-					handler.close();
+					response.close();
 				} catch (Exception e) {
 					// DO NOTHING
 				}
@@ -189,7 +285,7 @@ public class PingOneProtectResultNode extends AbstractDecisionNode  {
 	}
 	
 	
-	private void addAuthorizationHeader(Request request, String accessToken) throws MalformedHeaderException {
+	private static void addAuthorizationHeader(Request request, String accessToken) throws MalformedHeaderException {
 		AuthorizationHeader header = new AuthorizationHeader();
 		BearerToken bearerToken = new BearerToken(accessToken);
 		header.setRawValue(BearerToken.NAME + " " + bearerToken);
@@ -0,0 +1,251 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.pingone;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+import org.forgerock.http.Handler;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.services.context.Context;
+import org.forgerock.util.promise.NeverThrowsException;
+import org.forgerock.util.promise.Promise;
+import org.forgerock.util.promise.Promises;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.iplanet.am.util.SystemProperties;
+
+/**
+ * Serves the PingOne Signals SDK bundled with the plugin, from {@code /pingone-protect/sdk/<version>/signals-sdk.js}
+ * under the AM context path.
+ * <p>
+ * A version is served when the plugin was built with the {@code bundle-sdk} profile, which packages the SDK under
+ * {@link #BUNDLE_PATH}. A bundled {@code .gz} or {@code .br} variant is served to clients accepting it, and a gzip
+ * variant is otherwise compressed once when the version is first requested. The URL of a version never changes
+ * content, so responses carry a strong ETag per variant and may be cached for a year.
+ * </p>
+ */
+final class PingOneProtectSdkHandler implements Handler {
+
+	private static final Logger logger = LoggerFactory.getLogger(PingOneProtectSdkHandler.class);
+	private static final String loggerPrefix = "[PingOneProtectSdkHandler]" + PingOneProtectPlugin.logAppender;
+
+	static final String PROPERTY_PREFIX = "org.forgerock.am.marketplace.pingone.sdk.";
+	/**
+	 * Serve the bundled SDK. Disabled by default.
+	 */
+	static final String ENABLED = PROPERTY_PREFIX + "enabled";
+
+	/**
+	 * The route of the handler, relative to the AM context path.
+	 */
+	static final String ROUTE = "pingone-protect";
+	static final String BUNDLE_PATH = "org/forgerock/am/marketplace/pingone/sdk/";
+	private static final String FILE_NAME = "signals-sdk.js";
+	private static final Pattern SDK_PATH = Pattern.compile("/sdk/([0-9A-Za-z][0-9A-Za-z.\\-]*)/" + FILE_NAME + "$");
+
+	private static final String CONTENT_TYPE = "application/javascript; charset=UTF-8";
+	private static final String CACHE_CONTROL = "public, max-age=31536000, immutable";
+
+	private static final PingOneProtectSdkHandler INSTANCE = new PingOneProtectSdkHandler();
+
+	private final ConcurrentMap<String, Bundle> bundles = new ConcurrentHashMap<>();
+
+	private PingOneProtectSdkHandler() {
+	}
+
+	/**
+	 * Get the handler instance.
+	 *
+	 * @return The handler
+	 */
+	static PingOneProtectSdkHandler getInstance() {
+		return INSTANCE;
+	}
+
+	@Override
+	public Promise<Response, NeverThrowsException> handle(Context context, Request request) {
+		if (!SystemProperties.getAsBoolean(ENABLED, false)) {
+			return Promises.newResultPromise(new Response(Status.NOT_FOUND));
+		}
+		boolean head = "HEAD".equals(request.getMethod());
+		if (!head && !"GET".equals(request.getMethod())) {
+			Response response = new Response(Status.METHOD_NOT_ALLOWED);
+			response.getHeaders().put("Allow", "GET, HEAD");
+			return Promises.newResultPromise(response);
+		}
+		Matcher matcher = SDK_PATH.matcher(request.getUri().getPath());
+		Bundle bundle = matcher.find() ? getBundle(matcher.group(1)) : null;
+		if (bundle == null) {
+			return Promises.newResultPromise(new Response(Status.NOT_FOUND));
+		}
+
+		Variant variant = bundle.select(request.getHeaders().getFirst("Accept-Encoding"));
+		Response response;
+		String ifNoneMatch = request.getHeaders().getFirst("If-None-Match");
+		if (ifNoneMatch != null && (ifNoneMatch.contains(variant.etag) || ifNoneMatch.trim().equals("*"))) {
+			response = new Response(Status.NOT_MODIFIED);
+		} else {
+			response = new Response(Status.OK);
+			response.getHeaders().put("Content-Type", CONTENT_TYPE);
+			if (variant.encoding != null) {
+				response.getHeaders().put("Content-Encoding", variant.encoding);
+			}
+			if (head) {
+				response.getHeaders().put("Content-Length", String.valueOf(variant.content.length));
+			} else {
+				response.getEntity().setBytes(variant.content);
+			}
+		}
+		response.getHeaders().put("ETag", variant.etag);
+		response.getHeaders().put("Cache-Control", CACHE_CONTROL);
+		response.getHeaders().put("Vary", "Accept-Encoding");
+		response.getHeaders().put("X-Content-Type-Options", "nosniff");
+		return Promises.newResultPromise(response);
+	}
+
+	/**
+	 * Drop the loaded bundles. Called when the plugin shuts down.
+	 */
+	void shutdown() {
+		bundles.clear();
+	}
+
+	private Bundle getBundle(String version) {
+		Bundle bundle = bundles.get(version);
+		if (bundle == null) {
+			try {
+				bundle = Bundle.load(version);
+			} catch (IOException e) {
+				logger.warn("{}Unable to load the bundled SDK {}", loggerPrefix, version, e);
+				return null;
+			}
+			if (bundle == null) {
+				// Not cached, so that unknown versions do not fill the map.
+				return null;
+			}
+			Bundle existing = bundles.putIfAbsent(version, bundle);
+			if (existing != null) {
+				bundle = existing;
+			}
+		}
+		return bundle;
+	}
+
+	/**
+	 * Whether an Accept-Encoding header accepts an encoding, ignoring encodings refused with {@code q=0}.
+	 */
+	static boolean accepts(String acceptEncoding, String encoding) {
+		if (acceptEncoding == null) {
+			return false;
+		}
+		for (String part : acceptEncoding.split(",")) {
+			String[] parameters = part.split(";");
+			if (parameters[0].trim().equalsIgnoreCase(encoding)) {
+				for (int i = 1; i < parameters.length; i++) {
+					String parameter = parameters[i].trim().replace(" ", "");
+					if (parameter.startsWith("q=") && parameter.substring(2).matches("0(\\.0*)?")) {
+						return false;
+					}
+				}
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * The encoded variants of a bundled SDK version.
+	 */
+	private static final class Bundle {
+		private final Variant identity;
+		private final Variant gzip;
+		private final Variant brotli;
+
+		private Bundle(Variant identity, Variant gzip, Variant brotli) {
+			this.identity = identity;
+			this.gzip = gzip;
+			this.brotli = brotli;
+		}
+
+		/**
+		 * Load a version from the classpath.
+		 *
+		 * @return The bundle, or null if the version is not bundled
+		 */
+		private static Bundle load(String version) throws IOException {
+			String path = BUNDLE_PATH + version + "/" + FILE_NAME;
+			byte[] content = read(path);
+			if (content == null) {
+				return null;
+			}
+			String hash = Hashing.sha256().hashBytes(content).toString().substring(0, 32);
+			byte[] gzip = read(path + ".gz");
+			if (gzip == null) {
+				gzip = gzip(content);
+			}
+			byte[] brotli = read(path + ".br");
+			logger.debug("{}Loaded SDK {}, {} bytes, gzip {} bytes, brotli {}", loggerPrefix, version,
+					content.length, gzip.length, brotli == null ? "not bundled" : brotli.length + " bytes");
+			return new Bundle(new Variant(content, null, "\"" + hash + "\""),
+					new Variant(gzip, "gzip", "\"" + hash + "-gzip\""),
+					brotli == null ? null : new Variant(brotli, "br", "\"" + hash + "-br\""));
+		}
+
+		private Variant select(String acceptEncoding) {
+			if (brotli != null && accepts(acceptEncoding, "br")) {
+				return brotli;
+			}
+			if (accepts(acceptEncoding, "gzip")) {
+				return gzip;
+			}
+			return identity;
+		}
+
+		private static byte[] read(String path) throws IOException {
+			try (InputStream in = PingOneProtectSdkHandler.class.getClassLoader().getResourceAsStream(path)) {
+				return in == null ? null : ByteStreams.toByteArray(in);
+			}
+		}
+
+		private static byte[] gzip(byte[] content) throws IOException {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(content.length / 3);
+			try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+				gzip.write(content);
+			}
+			return out.toByteArray();
+		}
+	}
+
+	/**
+	 * An encoded representation of the SDK.
+	 */
+	private static final class Variant {
+		private final byte[] content;
+		private final String encoding;
+		private final String etag;
+
+		private Variant(byte[] content, String encoding, String etag) {
+			this.content = content;
+			this.encoding = encoding;
+			this.etag = etag;
+		}
+	}
+}
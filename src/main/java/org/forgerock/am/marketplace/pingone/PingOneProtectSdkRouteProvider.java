@@ -0,0 +1,33 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.pingone;
+
+import static org.forgerock.http.routing.RoutingMode.STARTS_WITH;
+import static org.forgerock.openam.http.HttpRoute.newHttpRoute;
+
+import java.util.Collections;
+import java.util.Set;
+
+import javax.inject.Provider;
+
+import org.forgerock.http.Handler;
+import org.forgerock.openam.http.HttpRoute;
+import org.forgerock.openam.http.HttpRouteProvider;
+
+/**
+ * Registers the {@link PingOneProtectSdkHandler} route with AM, loaded from {@code META-INF/services}.
+ */
+public class PingOneProtectSdkRouteProvider implements HttpRouteProvider {
+
+	@Override
+	public Set<HttpRoute> get() {
+		Provider<Handler> handler = PingOneProtectSdkHandler::getInstance;
+		return Collections.singleton(newHttpRoute(STARTS_WITH, PingOneProtectSdkHandler.ROUTE, handler));
+	}
+}
@@ -0,0 +1,452 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.pingone;
+
+import static org.forgerock.json.JsonValue.json;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.forgerock.http.header.ContentTypeHeader;
+import org.forgerock.http.protocol.Request;
+import org.forgerock.http.protocol.Response;
+import org.forgerock.http.protocol.Status;
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.auth.service.marketplace.TNTPPingOneConfig;
+import org.forgerock.openam.core.realms.Realm;
+import org.forgerock.openam.http.HttpConstants;
+import org.forgerock.openam.utils.JsonValueBuilder;
+import org.forgerock.services.context.RootContext;
+import org.forgerock.util.annotations.VisibleForTesting;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.iplanet.am.util.SystemProperties;
+
+/**
+ * Caches the PingOne worker access tokens used by the PingOne Protect nodes.
+ * <p>
+ * Tokens are kept per realm and worker. When a token is missing only one caller retrieves it from the token
+ * endpoint of the worker environment, with the worker client credentials, concurrent callers wait for that single
+ * retrieval. Tokens are renewed in the background shortly before they expire, so that journeys do not wait for the
+ * OAuth round trip. The token cached by the PingOne worker service is not used, since it would only be replaced
+ * once it has expired.
+ * </p>
+ * <p>
+ * The tokens can be retrieved from another {@link TokenSource}, e.g. a local stand-in of PingOne in load tests.
+ * </p>
+ */
+final class PingOneProtectTokenManager {
+
+	private static final Logger logger = LoggerFactory.getLogger(PingOneProtectTokenManager.class);
+	private static final String loggerPrefix = "[PingOneProtectTokenManager]" + PingOneProtectPlugin.logAppender;
+
+	static final String PROPERTY_PREFIX = "org.forgerock.am.marketplace.pingone.token.";
+	/**
+	 * Seconds before the token expiry to start the background renewal.
+	 */
+	static final String REFRESH_AHEAD = PROPERTY_PREFIX + "refreshAheadSeconds";
+	/**
+	 * Lifetime in seconds assumed for tokens that do not carry an expiry claim.
+	 */
+	static final String DEFAULT_LIFETIME = PROPERTY_PREFIX + "defaultLifetimeSeconds";
+	/**
+	 * Number of threads retrieving tokens, a single retrieval runs per worker at any time.
+	 */
+	static final String FETCH_THREADS = PROPERTY_PREFIX + "fetchThreads";
+
+	private static final long RETRY_DELAY = TimeUnit.SECONDS.toMillis(5);
+	private static final String AUTH_URL = "https://auth.pingone";
+
+	private static final PingOneProtectTokenManager INSTANCE = new PingOneProtectTokenManager();
+
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder refreshes = new LongAdder();
+	private volatile ScheduledExecutorService scheduler;
+	private volatile ExecutorService fetcher;
+	private volatile TokenSource source = PingOneProtectTokenManager::requestToken;
+
+	private PingOneProtectTokenManager() {
+	}
+
+	/**
+	 * Get the token manager instance.
+	 *
+	 * @return The token manager
+	 */
+	static PingOneProtectTokenManager getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Get a valid access token for the worker.
+	 *
+	 * @param realm  The realm
+	 * @param worker The PingOne worker configuration
+	 * @return The access token
+	 * @throws Exception When the access token cannot be retrieved
+	 */
+	String getAccessToken(Realm realm, TNTPPingOneConfig worker) throws Exception {
+		return getAccessToken(realm, worker, Deadline.none());
+	}
+
+	/**
+	 * Get a valid access token for the worker, giving up when the deadline passes.
+	 *
+	 * @param realm    The realm
+	 * @param worker   The PingOne worker configuration
+	 * @param deadline The deadline of the risk evaluation
+	 * @return The access token
+	 * @throws TimeoutException When the access token is not retrieved before the deadline
+	 * @throws Exception        When the access token cannot be retrieved
+	 */
+	String getAccessToken(Realm realm, TNTPPingOneConfig worker, Deadline deadline) throws Exception {
+		Entry entry = entries.computeIfAbsent(key(realm, worker), key -> new Entry(key, realm, worker));
+		entry.lastAccess = System.currentTimeMillis();
+		Token token = entry.token;
+		if (token != null && !token.isExpired()) {
+			hits.increment();
+			if (token.shouldRefresh()) {
+				// Scheduled renewal has not happened yet (e.g. it failed), renew without holding up this caller.
+				refreshInBackground(entry);
+			}
+			return token.value;
+		}
+		misses.increment();
+		try {
+			if (deadline.isBounded()) {
+				// Retrieve on another thread, so that this caller can give up when the deadline passes.
+				return loadAsync(entry).get(deadline.remainingMillis(), TimeUnit.MILLISECONDS).value;
+			}
+			return load(entry).get().value;
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+		}
+	}
+
+	/**
+	 * Number of requests served from the cache.
+	 *
+	 * @return The hit count
+	 */
+	long hits() {
+		return hits.sum();
+	}
+
+	/**
+	 * Number of requests that had to wait for a token retrieval.
+	 *
+	 * @return The miss count
+	 */
+	long misses() {
+		return misses.sum();
+	}
+
+	/**
+	 * Number of background renewals.
+	 *
+	 * @return The refresh count
+	 */
+	long refreshes() {
+		return refreshes.sum();
+	}
+
+	/**
+	 * Retrieve the tokens from another source, and drop the tokens already cached.
+	 *
+	 * @param source The token source
+	 */
+	@VisibleForTesting
+	void setTokenSource(TokenSource source) {
+		this.source = source;
+		entries.clear();
+	}
+
+	/**
+	 * Drop the tokens of a worker, e.g. when its configuration changed. Their renewals are cancelled.
+	 *
+	 * @param workerId The PingOne worker configuration id
+	 */
+	void invalidate(String workerId) {
+		entries.values().removeIf(entry -> {
+			if (entry.worker.id().equals(workerId)) {
+				entry.invalidated = true;
+				return true;
+			}
+			return false;
+		});
+	}
+
+	/**
+	 * Stop the background renewals and drop the cached tokens. Called when the plugin shuts down.
+	 */
+	synchronized void shutdown() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+		if (fetcher != null) {
+			fetcher.shutdownNow();
+			fetcher = null;
+		}
+		entries.clear();
+	}
+
+	/**
+	 * Retrieve the token, or join the retrieval that is already in progress for this entry.
+	 */
+	private CompletableFuture<Token> load(Entry entry) {
+		CompletableFuture<Token> future = new CompletableFuture<>();
+		CompletableFuture<Token> inflight = entry.inflight.compareAndExchange(null, future);
+		if (inflight != null) {
+			return inflight;
+		}
+		try {
+			Token token = fetch(entry);
+			entry.token = token;
+			scheduleRefresh(entry, token);
+			future.complete(token);
+		} catch (Exception e) {
+			future.completeExceptionally(e);
+		} finally {
+			entry.inflight.set(null);
+		}
+		return future;
+	}
+
+	private CompletableFuture<Token> loadAsync(Entry entry) {
+		CompletableFuture<Token> inflight = entry.inflight.get();
+		if (inflight != null) {
+			return inflight;
+		}
+		return CompletableFuture.supplyAsync(() -> load(entry), fetcher()).thenCompose(future -> future);
+	}
+
+	private Token fetch(Entry entry) throws Exception {
+		String value = source.getAccessToken(entry.realm, entry.worker);
+		if (value == null) {
+			throw new IllegalStateException("No access token returned for worker " + entry.worker.id());
+		}
+		return Token.of(value);
+	}
+
+	/**
+	 * Request a new access token with the client credentials grant of the worker.
+	 */
+	private static String requestToken(Realm realm, TNTPPingOneConfig worker) throws Exception {
+		Request request = null;
+		Response response = null;
+		try {
+			URI uri = URI.create(AUTH_URL + worker.environmentRegion().getDomainSuffix() + "/"
+					+ worker.environmentId() + "/as/token");
+			request = new Request().setUri(uri).setMethod(HttpConstants.Methods.POST);
+			String credentials = worker.clientId() + ":" + String.valueOf(worker.clientSecret());
+			request.getHeaders().put("Authorization",
+					"Basic " + Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8)));
+			request.getHeaders().put(ContentTypeHeader.NAME, "application/x-www-form-urlencoded");
+			request.setEntity("grant_type=client_credentials");
+			response = PingOneProtectHttpClient.handlerFor(worker).handle(new RootContext(), request).getOrThrow();
+			if (response.getStatus() != Status.OK) {
+				throw new PingOneApiException("PingOne token endpoint response with error." + response.getStatus(),
+						response.getStatus().getCode(), response.getCause());
+			}
+			JsonValue token = json(response.getEntity().getJson()).get("access_token");
+			return token.isString() && !Strings.isNullOrEmpty(token.asString()) ? token.asString() : null;
+		} finally {
+			if (response != null) {
+				response.close();
+			}
+			if (request != null) {
+				request.close();
+			}
+		}
+	}
+
+	private void refreshInBackground(Entry entry) {
+		// A renewal that is queued, running or waiting for its retry already covers this caller.
+		if (entry.inflight.get() == null && entry.refreshing.compareAndSet(false, true)) {
+			scheduler().execute(() -> refresh(entry));
+		}
+	}
+
+	private void refresh(Entry entry) {
+		if (entry.invalidated) {
+			return;
+		}
+		Token token = entry.token;
+		if (token != null && !token.shouldRefresh()) {
+			// Already renewed by an earlier task.
+			entry.refreshing.set(false);
+			return;
+		}
+		if (token != null && System.currentTimeMillis() - entry.lastAccess > token.lifetime()) {
+			// Not used for a whole token lifetime, let it expire instead of renewing it forever.
+			entries.remove(entry.key, entry);
+			return;
+		}
+		refreshes.increment();
+		entry.refreshing.set(true);
+		load(entry).whenComplete((result, e) -> {
+			if (e != null) {
+				logger.warn("{}Failed to renew access token for {}", loggerPrefix, entry.key, e);
+				scheduler().schedule(() -> refresh(entry), RETRY_DELAY, TimeUnit.MILLISECONDS);
+			} else {
+				entry.refreshing.set(false);
+			}
+		});
+	}
+
+	private void scheduleRefresh(Entry entry, Token token) {
+		long delay = Math.max(token.refreshAt - System.currentTimeMillis(), 0);
+		scheduler().schedule(() -> refresh(entry), delay, TimeUnit.MILLISECONDS);
+	}
+
+	private synchronized ExecutorService fetcher() {
+		if (fetcher == null) {
+			int threads = Math.max(SystemProperties.getAsInt(FETCH_THREADS, 4), 1);
+			ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<>(),
+					new ThreadFactoryBuilder().setNameFormat("PingOneProtect-token-fetch-%d").setDaemon(true).build());
+			executor.allowCoreThreadTimeOut(true);
+			fetcher = executor;
+		}
+		return fetcher;
+	}
+
+	private synchronized ScheduledExecutorService scheduler() {
+		if (scheduler == null) {
+			scheduler = Executors.newSingleThreadScheduledExecutor(
+					new ThreadFactoryBuilder().setNameFormat("PingOneProtect-token-%d").setDaemon(true).build());
+		}
+		return scheduler;
+	}
+
+	private static String key(Realm realm, TNTPPingOneConfig worker) {
+		return realm.asPath() + "#" + worker.id();
+	}
+
+	/**
+	 * Retrieves a new access token for a worker.
+	 */
+	@FunctionalInterface
+	interface TokenSource {
+
+		/**
+		 * Retrieve an access token.
+		 *
+		 * @param realm  The realm
+		 * @param worker The PingOne worker configuration
+		 * @return The access token
+		 * @throws Exception When the access token cannot be retrieved
+		 */
+		String getAccessToken(Realm realm, TNTPPingOneConfig worker) throws Exception;
+	}
+
+	/**
+	 * Cached token state for a realm and worker.
+	 */
+	private static final class Entry {
+		private final String key;
+		private final Realm realm;
+		private final TNTPPingOneConfig worker;
+		private final AtomicReference<CompletableFuture<Token>> inflight = new AtomicReference<>();
+		private final AtomicBoolean refreshing = new AtomicBoolean();
+		private volatile Token token;
+		private volatile long lastAccess;
+		private volatile boolean invalidated;
+
+		private Entry(String key, Realm realm, TNTPPingOneConfig worker) {
+			this.key = key;
+			this.realm = realm;
+			this.worker = worker;
+		}
+	}
+
+	/**
+	 * An access token and its renewal schedule.
+	 */
+	private static final class Token {
+		private final String value;
+		private final long issuedAt;
+		private final long expiresAt;
+		private final long refreshAt;
+
+		private Token(String value, long issuedAt, long expiresAt, long refreshAt) {
+			this.value = value;
+			this.issuedAt = issuedAt;
+			this.expiresAt = expiresAt;
+			this.refreshAt = refreshAt;
+		}
+
+		private static Token of(String value) {
+			long now = System.currentTimeMillis();
+			long expiresAt = expiry(value);
+			if (expiresAt <= now) {
+				expiresAt = now + TimeUnit.SECONDS.toMillis(SystemProperties.getAsInt(DEFAULT_LIFETIME, 300));
+			}
+			long refreshAhead = TimeUnit.SECONDS.toMillis(SystemProperties.getAsInt(REFRESH_AHEAD, 60));
+			// Never renew in the first half of the lifetime, whatever the configured window.
+			long refreshAt = Math.max(expiresAt - refreshAhead, now + (expiresAt - now) / 2);
+			return new Token(value, now, expiresAt, refreshAt);
+		}
+
+		private boolean isExpired() {
+			return System.currentTimeMillis() >= expiresAt;
+		}
+
+		private boolean shouldRefresh() {
+			return System.currentTimeMillis() >= refreshAt;
+		}
+
+		private long lifetime() {
+			return expiresAt - issuedAt;
+		}
+
+		/**
+		 * Read the {@code exp} claim of a JWT access token.
+		 *
+		 * @return The expiry in milliseconds, or 0 when the token is not a JWT
+		 */
+		private static long expiry(String value) {
+			String[] parts = value.split("\\.");
+			if (parts.length != 3) {
+				return 0;
+			}
+			try {
+				byte[] claims = Base64.getUrlDecoder().decode(parts[1]);
+				JsonNode exp = JsonValueBuilder.getObjectMapper()
+						.readTree(new String(claims, StandardCharsets.UTF_8)).get("exp");
+				return exp != null && exp.canConvertToLong() ? TimeUnit.SECONDS.toMillis(exp.asLong()) : 0;
+			} catch (Exception e) {
+				logger.debug("{}Unable to read the access token expiry", loggerPrefix, e);
+				return 0;
+			}
+		}
+	}
+}
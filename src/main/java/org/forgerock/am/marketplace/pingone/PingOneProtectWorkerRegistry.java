@@ -0,0 +1,239 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.pingone;
+
+import java.security.AccessController;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.forgerock.openam.annotations.sm.Config;
+import org.forgerock.openam.auth.service.marketplace.TNTPPingOneConfig;
+import org.forgerock.openam.auth.service.marketplace.TNTPPingOneConfigChoiceValues;
+import org.forgerock.util.annotations.VisibleForTesting;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.collect.ImmutableMap;
+import com.iplanet.sso.SSOToken;
+import com.sun.identity.security.AdminTokenAction;
+import com.sun.identity.sm.ServiceConfigManager;
+import com.sun.identity.sm.ServiceListener;
+
+/**
+ * Registry of the resolved PingOne worker configurations, by worker configuration name.
+ * <p>
+ * Lookups read an immutable snapshot without locking. A worker is resolved through
+ * {@link TNTPPingOneConfigChoiceValues} the first time it is used, and added to a new snapshot. When the PingOne
+ * worker service configuration changes, the snapshot is resolved again and swapped. The state kept for a worker
+ * whose environment, region or credentials changed, or that was removed, (access token, circuit breaker and HTTP
+ * client) is dropped, so that the nodes use the new configuration. If the change listener cannot be registered,
+ * workers are resolved on every lookup.
+ * </p>
+ */
+final class PingOneProtectWorkerRegistry {
+
+	private static final Logger logger = LoggerFactory.getLogger(PingOneProtectWorkerRegistry.class);
+	private static final String loggerPrefix = "[PingOneProtectWorkerRegistry]" + PingOneProtectPlugin.logAppender;
+
+	private static final PingOneProtectWorkerRegistry INSTANCE = new PingOneProtectWorkerRegistry();
+
+	private final AtomicReference<ImmutableMap<String, TNTPPingOneConfig>> snapshot =
+			new AtomicReference<>(ImmutableMap.of());
+	private volatile ServiceConfigManager serviceConfigManager;
+	private volatile String listenerId;
+
+	private PingOneProtectWorkerRegistry() {
+	}
+
+	/**
+	 * Get the worker registry instance.
+	 *
+	 * @return The worker registry
+	 */
+	static PingOneProtectWorkerRegistry getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Listen to the changes of the PingOne worker service configuration.
+	 */
+	synchronized void start() {
+		if (listenerId != null) {
+			return;
+		}
+		String serviceName = getServiceName();
+		try {
+			SSOToken adminToken = AccessController.doPrivileged(AdminTokenAction.getInstance());
+			serviceConfigManager = new ServiceConfigManager(serviceName, adminToken);
+			listenerId = serviceConfigManager.addListener(new Listener());
+		} catch (Exception e) {
+			logger.warn("{}Unable to listen to the {} configuration, workers are resolved on each use", loggerPrefix,
+					serviceName, e);
+		}
+	}
+
+	/**
+	 * Stop listening to the configuration changes and drop the resolved workers.
+	 */
+	synchronized void shutdown() {
+		if (listenerId != null) {
+			serviceConfigManager.removeListener(listenerId);
+			listenerId = null;
+			serviceConfigManager = null;
+		}
+		snapshot.set(ImmutableMap.of());
+	}
+
+	/**
+	 * Get a worker configuration.
+	 *
+	 * @param name The worker configuration name, as selected in the node configuration
+	 * @return The worker configuration, or null if there is no such worker
+	 */
+	TNTPPingOneConfig get(String name) {
+		TNTPPingOneConfig worker = snapshot.get().get(name);
+		if (worker != null) {
+			return worker;
+		}
+		worker = TNTPPingOneConfigChoiceValues.getTNTPPingOneConfig(name);
+		if (worker == null || listenerId == null) {
+			return worker;
+		}
+		ImmutableMap<String, TNTPPingOneConfig> current;
+		ImmutableMap<String, TNTPPingOneConfig> updated;
+		do {
+			current = snapshot.get();
+			if (current.containsKey(name)) {
+				return current.get(name);
+			}
+			updated = ImmutableMap.<String, TNTPPingOneConfig>builder().putAll(current).put(name, worker).build();
+		} while (!snapshot.compareAndSet(current, updated));
+		return worker;
+	}
+
+	/**
+	 * Get the name of a worker configuration, e.g. to record metrics under the name the nodes use.
+	 *
+	 * @param worker The worker configuration
+	 * @return The worker configuration name, or null if the worker has not been looked up by name
+	 */
+	String nameOf(TNTPPingOneConfig worker) {
+		for (Map.Entry<String, TNTPPingOneConfig> entry : snapshot.get().entrySet()) {
+			if (entry.getValue().id().equals(worker.id())) {
+				return entry.getKey();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Register a worker configuration that is not read from the PingOne worker service, e.g. a worker of a local
+	 * stand-in of PingOne in load tests. The worker is dropped on the next configuration change.
+	 *
+	 * @param name   The worker configuration name
+	 * @param worker The worker configuration
+	 */
+	@VisibleForTesting
+	void put(String name, TNTPPingOneConfig worker) {
+		ImmutableMap<String, TNTPPingOneConfig> current;
+		ImmutableMap<String, TNTPPingOneConfig> updated;
+		do {
+			current = snapshot.get();
+			ImmutableMap.Builder<String, TNTPPingOneConfig> builder = ImmutableMap.builder();
+			current.forEach((key, value) -> {
+				if (!key.equals(name)) {
+					builder.put(key, value);
+				}
+			});
+			updated = builder.put(name, worker).build();
+		} while (!snapshot.compareAndSet(current, updated));
+	}
+
+	/**
+	 * Resolve all the known workers again and swap the snapshot, then drop the state kept for the workers whose
+	 * configuration changed.
+	 */
+	void refresh() {
+		ImmutableMap<String, TNTPPingOneConfig> current = snapshot.get();
+		ImmutableMap.Builder<String, TNTPPingOneConfig> builder = ImmutableMap.builder();
+		for (String name : current.keySet()) {
+			try {
+				TNTPPingOneConfig worker = TNTPPingOneConfigChoiceValues.getTNTPPingOneConfig(name);
+				if (worker != null) {
+					builder.put(name, worker);
+				}
+			} catch (Exception e) {
+				logger.warn("{}Unable to resolve worker {}", loggerPrefix, name, e);
+			}
+		}
+		// Workers added while resolving are dropped and resolved again on their next use.
+		ImmutableMap<String, TNTPPingOneConfig> updated = builder.build();
+		snapshot.set(updated);
+		current.forEach((name, previous) -> {
+			TNTPPingOneConfig worker = updated.get(name);
+			if (worker != null && sameCredentials(previous, worker)) {
+				return;
+			}
+			logger.debug("{}Worker {} changed, dropping its state", loggerPrefix, name);
+			PingOneProtectTokenManager.getInstance().invalidate(previous.id());
+			PingOneProtectCircuitBreaker.invalidate(previous.id());
+			if (worker == null || !sameEnvironment(previous, worker)) {
+				PingOneProtectHttpClient.invalidate(previous.environmentId());
+			}
+		});
+		logger.debug("{}Worker configurations refreshed", loggerPrefix);
+	}
+
+	/**
+	 * Whether the HTTP client of a worker, which is kept by environment, can still be used.
+	 */
+	private static boolean sameEnvironment(TNTPPingOneConfig previous, TNTPPingOneConfig worker) {
+		return Objects.equals(previous.environmentId(), worker.environmentId())
+				&& Objects.equals(previous.environmentRegion(), worker.environmentRegion());
+	}
+
+	/**
+	 * Whether the access token and the circuit breaker of a worker can still be used.
+	 */
+	private static boolean sameCredentials(TNTPPingOneConfig previous, TNTPPingOneConfig worker) {
+		return Objects.equals(previous.id(), worker.id())
+				&& sameEnvironment(previous, worker)
+				&& Objects.equals(previous.clientId(), worker.clientId())
+				&& Objects.equals(String.valueOf(previous.clientSecret()), String.valueOf(worker.clientSecret()));
+	}
+
+	private static String getServiceName() {
+		Config config = TNTPPingOneConfig.class.getAnnotation(Config.class);
+		return config != null && !config.name().isEmpty() ? config.name() : TNTPPingOneConfig.class.getSimpleName();
+	}
+
+	/**
+	 * Refreshes the registry on any change of the worker service.
+	 */
+	private final class Listener implements ServiceListener {
+
+		@Override
+		public void schemaChanged(String serviceName, String version) {
+			refresh();
+		}
+
+		@Override
+		public void globalConfigChanged(String serviceName, String version, String groupName,
+				String serviceComponent, int type) {
+			refresh();
+		}
+
+		@Override
+		public void organizationConfigChanged(String serviceName, String version, String orgName, String groupName,
+				String serviceComponent, int type) {
+			refresh();
+		}
+	}
+}
@@ -0,0 +1,109 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+package org.forgerock.am.marketplace.pingone;
+
+import java.nio.ByteBuffer;
+import java.util.Base64;
+import java.util.UUID;
+
+/**
+ * Compact shared state encoding of the risk evaluation id and worker, used by the Result node to update the risk
+ * evaluation.
+ * <p>
+ * The value is {@code <id>|<worker name>}. A risk evaluation id in the canonical UUID form is written as its 16
+ * bytes in unpadded base64url (22 characters instead of 36), any other id is written as is after a {@code ~}.
+ * </p>
+ */
+final class RiskReference {
+
+    private static final char SEPARATOR = '|';
+    private static final char RAW = '~';
+
+    private final String riskEvalId;
+    private final String workerName;
+
+    private RiskReference(String riskEvalId, String workerName) {
+        this.riskEvalId = riskEvalId;
+        this.workerName = workerName;
+    }
+
+    /**
+     * Encode a risk evaluation reference.
+     *
+     * @param riskEvalId The risk evaluation id
+     * @param workerName The worker configuration name
+     * @return The encoded reference
+     */
+    static String encode(String riskEvalId, String workerName) {
+        StringBuilder value = new StringBuilder(24 + workerName.length());
+        UUID uuid = toUuid(riskEvalId);
+        if (uuid != null) {
+            ByteBuffer bytes = ByteBuffer.allocate(16);
+            bytes.putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits());
+            value.append(Base64.getUrlEncoder().withoutPadding().encodeToString(bytes.array()));
+        } else {
+            value.append(RAW).append(riskEvalId);
+        }
+        return value.append(SEPARATOR).append(workerName).toString();
+    }
+
+    /**
+     * Decode a risk evaluation reference.
+     *
+     * @param value The encoded reference
+     * @return The reference
+     * @throws IllegalArgumentException When the value is not a risk evaluation reference
+     */
+    static RiskReference decode(String value) {
+        int separator = value.indexOf(SEPARATOR);
+        if (separator <= 0) {
+            throw new IllegalArgumentException("Invalid risk evaluation reference");
+        }
+        String id = value.substring(0, separator);
+        String workerName = value.substring(separator + 1);
+        if (id.charAt(0) == RAW) {
+            return new RiskReference(id.substring(1), workerName);
+        }
+        ByteBuffer bytes = ByteBuffer.wrap(Base64.getUrlDecoder().decode(id));
+        if (bytes.remaining() != 16) {
+            throw new IllegalArgumentException("Invalid risk evaluation reference");
+        }
+        return new RiskReference(new UUID(bytes.getLong(), bytes.getLong()).toString(), workerName);
+    }
+
+    /**
+     * Get the risk evaluation id.
+     *
+     * @return The risk evaluation id
+     */
+    String getRiskEvalId() {
+        return riskEvalId;
+    }
+
+    /**
+     * Get the worker configuration name.
+     *
+     * @return The worker configuration name
+     */
+    String getWorkerName() {
+        return workerName;
+    }
+
+    private static UUID toUuid(String id) {
+        if (id.length() != 36) {
+            return null;
+        }
+        try {
+            UUID uuid = UUID.fromString(id);
+            // Only ids that decode back to the same string are compacted.
+            return uuid.toString().equals(id) ? uuid : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
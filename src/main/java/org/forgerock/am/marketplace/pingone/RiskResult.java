@@ -0,0 +1,263 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+package org.forgerock.am.marketplace.pingone;
+
+import static org.forgerock.json.JsonValue.json;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.forgerock.json.JsonValue;
+import org.forgerock.openam.utils.JsonValueBuilder;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * The parts of a PingOne risk evaluation response that drive the node outcome.
+ */
+final class RiskResult {
+
+    private static final String ID = "id";
+    private static final String RESULT = "result";
+    private static final String LEVEL = "level";
+    private static final String SCORE = "score";
+    private static final String RECOMMENDED_ACTION = "recommendedAction";
+    private static final String LEVEL_PATH = RESULT + "." + LEVEL;
+    private static final String SCORE_PATH = RESULT + "." + SCORE;
+    private static final String RECOMMENDED_ACTION_PATH = RESULT + "." + RECOMMENDED_ACTION;
+
+    private static final JsonFactory factory = JsonValueBuilder.getObjectMapper().getFactory();
+
+    private final String id;
+    private final String level;
+    private final double score;
+    private final String recommendedAction;
+    private final JsonValue response;
+
+    /**
+     * Create the risk result.
+     *
+     * @param id                The risk evaluation id
+     * @param level             The risk level, may be null
+     * @param score             The risk score, {@link Double#NaN} when the response has no score
+     * @param recommendedAction The recommended action, may be null
+     * @param response          The full response, may be null when it is not kept
+     */
+    RiskResult(String id, String level, double score, String recommendedAction, JsonValue response) {
+        this.id = id;
+        this.level = level;
+        this.score = score;
+        this.recommendedAction = recommendedAction;
+        this.response = response;
+    }
+
+    /**
+     * Read the risk result from the risk evaluation response.
+     *
+     * @param response The risk evaluation response
+     * @return The risk result
+     */
+    static RiskResult of(JsonValue response) {
+        JsonValue result = response.get(RESULT);
+        return new RiskResult(response.get(ID).asString(),
+                result.isDefined(LEVEL) ? result.get(LEVEL).asString() : null,
+                result.isDefined(SCORE) ? result.get(SCORE).asDouble() : Double.NaN,
+                result.isDefined(RECOMMENDED_ACTION) ? result.get(RECOMMENDED_ACTION).asString() : null,
+                response);
+    }
+
+    /**
+     * Read the risk result from a risk evaluation response stream, without building the JSON tree.
+     * <p>
+     * Only the risk evaluation id and the result level, score and recommended action are read, the details of the
+     * predictors are skipped.
+     * </p>
+     *
+     * @param in The risk evaluation response body
+     * @return The risk result, without the full response
+     * @throws IOException When the response is not a JSON object
+     */
+    static RiskResult parse(InputStream in) throws IOException {
+        return parse(in, Collections.emptySet());
+    }
+
+    /**
+     * Read the risk result and a projection of the response from a risk evaluation response stream, without
+     * building the JSON tree.
+     * <p>
+     * The projection is a flat object, from the dotted path of each projected field (e.g. {@code result.score} or
+     * {@code details.ipRisk.level}) to its value. The fields that are not projected are skipped.
+     * </p>
+     *
+     * @param in         The risk evaluation response body
+     * @param projection The dotted paths of the fields to keep, empty to keep none
+     * @return The risk result, with the projection as the response when fields are projected
+     * @throws IOException When the response is not a JSON object
+     */
+    static RiskResult parse(InputStream in, Set<String> projection) throws IOException {
+        Reader reader = new Reader(projection);
+        try (JsonParser parser = factory.createParser(in)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Risk evaluation response is not a JSON object");
+            }
+            reader.readObject(parser, "");
+        }
+        return new RiskResult(reader.id, reader.level, reader.score, reader.recommendedAction,
+                projection.isEmpty() ? null : json(reader.projected));
+    }
+
+    /**
+     * Get the risk evaluation id.
+     *
+     * @return The risk evaluation id
+     */
+    String getId() {
+        return id;
+    }
+
+    /**
+     * Get the risk level.
+     *
+     * @return The risk level, or null
+     */
+    String getLevel() {
+        return level;
+    }
+
+    /**
+     * Whether the response has a score.
+     *
+     * @return True if there is a score
+     */
+    boolean hasScore() {
+        return !Double.isNaN(score);
+    }
+
+    /**
+     * Get the risk score.
+     *
+     * @return The risk score, {@link Double#NaN} when there is no score
+     */
+    double getScore() {
+        return score;
+    }
+
+    /**
+     * Get the recommended action.
+     *
+     * @return The recommended action, or null
+     */
+    String getRecommendedAction() {
+        return recommendedAction;
+    }
+
+    /**
+     * Get the full risk evaluation response.
+     *
+     * @return The response, or null when it is not kept
+     */
+    JsonValue getResponse() {
+        return response;
+    }
+
+    /**
+     * Copy of this result without the full response.
+     *
+     * @return The risk result without the response
+     */
+    RiskResult withoutResponse() {
+        return response == null ? this : new RiskResult(id, level, score, recommendedAction, null);
+    }
+
+    @Override
+    public String toString() {
+        return "RiskResult{id=" + id + ", level=" + level + ", score=" + score + ", recommendedAction="
+                + recommendedAction + "}";
+    }
+
+    /**
+     * Walks the response, reading the outcome fields and the projected fields.
+     */
+    private static final class Reader {
+        private final Set<String> projection;
+        private final Set<String> parents = new HashSet<>();
+        private final Map<String, Object> projected = new LinkedHashMap<>();
+        private String id;
+        private String level;
+        private double score = Double.NaN;
+        private String recommendedAction;
+
+        private Reader(Set<String> projection) {
+            this.projection = projection;
+            parents.add(RESULT);
+            for (String path : projection) {
+                for (int dot = path.indexOf('.'); dot > 0; dot = path.indexOf('.', dot + 1)) {
+                    parents.add(path.substring(0, dot));
+                }
+            }
+        }
+
+        private void readObject(JsonParser parser, String prefix) throws IOException {
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String path = prefix + parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                if (projection.contains(path)) {
+                    Object value = factory.getCodec().readValue(parser, Object.class);
+                    projected.put(path, value);
+                    offer(path, value);
+                } else if (token == JsonToken.START_OBJECT && parents.contains(path)) {
+                    readObject(parser, path + ".");
+                } else if (token.isScalarValue()) {
+                    offer(path, scalar(parser, token));
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private void offer(String path, Object value) {
+            if (value instanceof Map) {
+                for (Map.Entry<String, Object> entry : ((Map<String, Object>) value).entrySet()) {
+                    offer(path + "." + entry.getKey(), entry.getValue());
+                }
+            } else if (ID.equals(path) && value instanceof String) {
+                id = (String) value;
+            } else if (LEVEL_PATH.equals(path) && value instanceof String) {
+                level = (String) value;
+            } else if (SCORE_PATH.equals(path) && value instanceof Number) {
+                score = ((Number) value).doubleValue();
+            } else if (RECOMMENDED_ACTION_PATH.equals(path) && value instanceof String) {
+                recommendedAction = (String) value;
+            }
+        }
+
+        private static Object scalar(JsonParser parser, JsonToken token) throws IOException {
+            switch (token) {
+            case VALUE_STRING:
+                return parser.getText();
+            case VALUE_NUMBER_INT:
+            case VALUE_NUMBER_FLOAT:
+                return parser.getNumberValue();
+            case VALUE_TRUE:
+                return Boolean.TRUE;
+            case VALUE_FALSE:
+                return Boolean.FALSE;
+            default:
+                return null;
+            }
+        }
+    }
+}
@@ -1,6 +1,6 @@
 /*
- * This code is to be used exclusively in connection with Ping Identity Corporation software or services. 
- * Ping Identity Corporation only offers such software or services to legal entities who have entered into 
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
  * a binding license agreement with Ping Identity Corporation.
  *
  * Copyright 2024 Ping Identity Corporation. All Rights Reserved
@@ -10,43 +10,159 @@ package org.forgerock.am.marketplace.pingone;
 
 import java.io.IOException;
 import java.net.URL;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
-import org.apache.commons.lang.text.StrSubstitutor;
 import org.forgerock.openam.auth.node.api.NodeProcessException;
-import org.forgerock.json.JsonValue;
 
 import com.google.common.base.Charsets;
 import com.google.common.io.Resources;
 import com.sun.identity.authentication.callbacks.ScriptTextOutputCallback;
 
 
-
+/**
+ * Client script templates.
+ * <p>
+ * The templates are read from the classpath once and compiled into literal text and <code>${name}</code> slots.
+ * A node renders its script once for its configuration and keeps it, the signals script is rendered once.
+ * </p>
+ */
 public class ScriptHelper {
-	
+
     protected static final String sdkJsPathTemplate = "org/forgerock/am/marketplace/pingone/client.js";
     protected static final String sdkJsPathSigTemplate = "org/forgerock/am/marketplace/pingone/getSigs.js";
+    protected static final String sdkJsPathCollectTemplate = "org/forgerock/am/marketplace/pingone/initAndCollect.js";
+
+	private static final ConcurrentMap<String, Template> templates = new ConcurrentHashMap<>();
+	private static final ConcurrentMap<String, String> sigScripts = new ConcurrentHashMap<>();
+
+	/**
+	 * Read and compile the client script templates.
+	 *
+	 * @throws NodeProcessException When a template cannot be read
+	 */
+	static void loadTemplates() throws NodeProcessException {
+		getTemplate(sdkJsPathTemplate);
+		getTemplate(sdkJsPathSigTemplate);
+		getTemplate(sdkJsPathCollectTemplate);
+	}
 
-	static protected ScriptTextOutputCallback getScriptedCallback(String clientScript, JsonValue initValues) {
-		String sdkJs = new StrSubstitutor(initValues.asMap()).replace(clientScript);
-		return new ScriptTextOutputCallback(sdkJs);
+	static protected ScriptTextOutputCallback getSigCallback(String jsTemplate) throws NodeProcessException {
+		String script = sigScripts.get(jsTemplate);
+		if (script == null) {
+			script = render(jsTemplate, Collections.singletonMap("sdkCookie", PingOneProtectInitializeNode.SDK_COOKIE));
+			sigScripts.putIfAbsent(jsTemplate, script);
+		}
+		return new ScriptTextOutputCallback(script);
 	}
-	
-	static protected ScriptTextOutputCallback getSigCallback(String clientScript) {
-		Map<String, String> sdkConfigMap = new HashMap<>();
-		String sdkJs = new StrSubstitutor(sdkConfigMap).replace(clientScript);
-		ScriptTextOutputCallback callback = new ScriptTextOutputCallback(sdkJs);
-		return callback;
-	}	
-	
+
 
 	static protected String readJS(String jsTemplate) throws NodeProcessException {
-		URL resource = Resources.getResource(jsTemplate);
-		try {
-			return Resources.toString(resource, Charsets.UTF_8);
-		} catch (IOException ex) {
-			throw new NodeProcessException(ex);
+		return getTemplate(jsTemplate).source;
+	}
+
+	/**
+	 * Render a template with the given values.
+	 *
+	 * @param jsTemplate The template path
+	 * @param values     The template values
+	 * @return The script
+	 * @throws NodeProcessException When the template cannot be read
+	 */
+	static String render(String jsTemplate, Map<String, Object> values) throws NodeProcessException {
+		return getTemplate(jsTemplate).render(values);
+	}
+
+	private static Template getTemplate(String jsTemplate) throws NodeProcessException {
+		Template template = templates.get(jsTemplate);
+		if (template == null) {
+			URL resource = Resources.getResource(jsTemplate);
+			try {
+				template = Template.compile(Resources.toString(resource, Charsets.UTF_8));
+			} catch (IOException ex) {
+				throw new NodeProcessException(ex);
+			}
+			Template existing = templates.putIfAbsent(jsTemplate, template);
+			if (existing != null) {
+				template = existing;
+			}
+		}
+		return template;
+	}
+
+	/**
+	 * A script template split into literal text and variable slots.
+	 */
+	private static final class Template {
+		private final String source;
+		private final String[] literals;
+		private final String[] variables;
+		private final int literalLength;
+
+		private Template(String source, String[] literals, String[] variables) {
+			this.source = source;
+			this.literals = literals;
+			this.variables = variables;
+			int length = 0;
+			for (String literal : literals) {
+				length += literal.length();
+			}
+			this.literalLength = length;
+		}
+
+		/**
+		 * Compile a template. Variables are written <code>${name}</code>, <code>$${</code> escapes a literal
+		 * <code>${</code>.
+		 */
+		private static Template compile(String source) {
+			List<String> literals = new ArrayList<>();
+			List<String> variables = new ArrayList<>();
+			StringBuilder literal = new StringBuilder();
+			int position = 0;
+			while (position < source.length()) {
+				int start = source.indexOf("${", position);
+				if (start < 0) {
+					break;
+				}
+				if (start > position && source.charAt(start - 1) == '$') {
+					literal.append(source, position, start - 1).append("${");
+					position = start + 2;
+					continue;
+				}
+				int end = source.indexOf('}', start + 2);
+				if (end < 0) {
+					break;
+				}
+				literal.append(source, position, start);
+				literals.add(literal.toString());
+				literal.setLength(0);
+				variables.add(source.substring(start + 2, end));
+				position = end + 1;
+			}
+			literal.append(source, position, source.length());
+			literals.add(literal.toString());
+			return new Template(source, literals.toArray(new String[0]), variables.toArray(new String[0]));
+		}
+
+		/**
+		 * Render the template. Variables without a value are kept as is.
+		 */
+		private String render(Map<String, Object> values) {
+			StringBuilder script = new StringBuilder(literalLength + variables.length * 16);
+			for (int i = 0; i < variables.length; i++) {
+				script.append(literals[i]);
+				Object value = values.get(variables[i]);
+				if (value != null) {
+					script.append(value);
+				} else {
+					script.append("${").append(variables[i]).append('}');
+				}
+			}
+			return script.append(literals[variables.length]).toString();
 		}
 	}
 
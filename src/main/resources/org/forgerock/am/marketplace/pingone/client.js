@@ -12,7 +12,28 @@ script.type = 'text/javascript';
 script.src = "${sdkUrl}";
 script.setAttribute('defer', 'defer');
 
+// Tell the Initialize node that the SDK is live in this page, until the page is unloaded.
+function markPingOneSignalsInitialized() {
+  var registered = window['_pingOneSignalsCookie'];
+  window['_pingOneSignalsCookie'] = "${sdkCookie}=${configHash}; path=/; SameSite=Strict"
+      + (location.protocol === 'https:' ? "; Secure" : "");
+  document.cookie = window['_pingOneSignalsCookie'];
+  if (registered) {
+    return;
+  }
+  window.addEventListener('pagehide', function () {
+    document.cookie = "${sdkCookie}=; path=/; max-age=0";
+  });
+  window.addEventListener('pageshow', function (event) {
+    // Restored from the back/forward cache with the SDK still live.
+    if (event.persisted) {
+      document.cookie = window['_pingOneSignalsCookie'];
+    }
+  });
+}
+
 if (typeof window._pingOneSignals === 'function') {
+  markPingOneSignalsInitialized();
   document.getElementById('loginButton_0').click()
 } 
 else {
@@ -40,6 +61,7 @@ else {
       disableHub: JSON.parse("${disableHub}")
     }).then(function () {
       console.log("PingOne Signals initialized successfully");
+      markPingOneSignalsInitialized();
       document.getElementById('loginButton_0').click()
     }).catch(function (e) {
       console.error("SDK Init failed", e);
@@ -6,11 +6,44 @@
  * Copyright 2024 Ping Identity Corporation. All Rights Reserved
  */
 
-_pingOneSignals.getData().then(function (result) {
-  setTimeout(function () {
-    document.getElementById('clientScriptOutputData').value = result
-    document.getElementById('loginButton_0').click();
-  }, 500)
-}).catch(function (e) {
-  console.error("SDK retrieve failed", e);
-})
+(function () {
+  // Run the callback as soon as the element is rendered, instead of waiting a fixed delay.
+  function whenPresent(id, callback) {
+    var element = document.getElementById(id);
+    if (element) {
+      callback(element);
+      return;
+    }
+    var observer = new MutationObserver(function () {
+      var element = document.getElementById(id);
+      if (element) {
+        observer.disconnect();
+        callback(element);
+      }
+    });
+    observer.observe(document.body, { childList: true, subtree: true });
+  }
+
+  function submit(id, value) {
+    whenPresent(id, function (output) {
+      output.value = value;
+      whenPresent('loginButton_0', function (button) {
+        button.click();
+      });
+    });
+  }
+
+  // The Initialize node skipped its callback on the cookie of another page, in which the SDK is live.
+  if (typeof window._pingOneSignals !== 'function') {
+    document.cookie = "${sdkCookie}=; path=/; max-age=0";
+    submit('clientError', 'PingOne Signals SDK is not initialized in this page');
+    return;
+  }
+
+  _pingOneSignals.getData().then(function (result) {
+    submit('clientScriptOutputData', result);
+  }).catch(function (e) {
+    console.error("SDK retrieve failed", e);
+    submit('clientError', String(e && e.message || e));
+  });
+})();
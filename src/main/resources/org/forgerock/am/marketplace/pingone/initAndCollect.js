@@ -0,0 +1,111 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services. 
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into 
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+(function () {
+  // Run the callback as soon as the element is rendered, instead of waiting a fixed delay.
+  function whenPresent(id, callback) {
+    var element = document.getElementById(id);
+    if (element) {
+      callback(element);
+      return;
+    }
+    var observer = new MutationObserver(function () {
+      var element = document.getElementById(id);
+      if (element) {
+        observer.disconnect();
+        callback(element);
+      }
+    });
+    observer.observe(document.body, { childList: true, subtree: true });
+  }
+
+  function submit(id, value) {
+    whenPresent(id, function (output) {
+      output.value = value;
+      whenPresent('loginButton_0', function (button) {
+        button.click();
+      });
+    });
+  }
+
+  function fail(message, e) {
+    console.error(message, e);
+    submit('clientError', message + ": " + String(e && e.message || e));
+  }
+
+  // Tell the Initialize node that the SDK is live in this page, until the page is unloaded.
+  function markInitialized() {
+    var registered = window['_pingOneSignalsCookie'];
+    window['_pingOneSignalsCookie'] = "${sdkCookie}=${configHash}; path=/; SameSite=Strict"
+        + (location.protocol === 'https:' ? "; Secure" : "");
+    document.cookie = window['_pingOneSignalsCookie'];
+    if (registered) {
+      return;
+    }
+    window.addEventListener('pagehide', function () {
+      document.cookie = "${sdkCookie}=; path=/; max-age=0";
+    });
+    window.addEventListener('pageshow', function (event) {
+      // Restored from the back/forward cache with the SDK still live.
+      if (event.persisted) {
+        document.cookie = window['_pingOneSignalsCookie'];
+      }
+    });
+  }
+
+  function collect() {
+    _pingOneSignals.getData().then(function (result) {
+      submit('clientScriptOutputData', result);
+    }).catch(function (e) {
+      fail("SDK retrieve failed", e);
+    });
+  }
+
+  if (typeof window._pingOneSignals === 'function') {
+    markInitialized();
+    collect();
+    return;
+  }
+
+  Array.prototype.slice.call(document.getElementsByTagName('button')).forEach(function (e) {
+    e.style.display = 'none'
+  });
+
+  function onPingOneSignalsReady(callback) {
+    if (window['_pingOneSignalsReady']) {
+      callback();
+    } else {
+      document.addEventListener('PingOneSignalsReadyEvent', callback);
+    }
+  }
+
+  onPingOneSignalsReady(function () {
+    _pingOneSignals.init({
+      behavioralDataCollection: JSON.parse("${behavioralDataCollection}"),
+      envId: "${envId}",
+      consoleLogEnabled: JSON.parse("${consoleLogEnabled}"),
+      lazyMetadata: JSON.parse("${lazyMetadata}"),
+      deviceKeyRsyncIntervals: JSON.parse("${deviceKeyRsyncIntervals}"),
+      enableTrust: JSON.parse("${enableTrust}"),
+      disableTags: JSON.parse("${disableTags}"),
+      disableHub: JSON.parse("${disableHub}")
+    }).then(function () {
+      console.log("PingOne Signals initialized successfully");
+      markInitialized();
+      collect();
+    }).catch(function (e) {
+      fail("SDK Init failed", e);
+    });
+  });
+
+  var script = document.createElement('script');
+  script.type = 'text/javascript';
+  script.src = "${sdkUrl}";
+  script.setAttribute('defer', 'defer');
+  document.body.appendChild(script);
+})();
@@ -0,0 +1,65 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.pingone;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class LatencyHistogramTest {
+
+	@Test
+	void smallValuesHaveTheirOwnBucket() {
+		for (long value = 0; value < 4; value++) {
+			assertEquals(value, LatencyHistogram.index(value));
+			assertEquals(value, LatencyHistogram.upperBound(LatencyHistogram.index(value)));
+		}
+	}
+
+	@Test
+	void bucketsAreContiguous() {
+		for (long value = 1; value < 1 << 20; value++) {
+			int index = LatencyHistogram.index(value);
+			assertTrue(value <= LatencyHistogram.upperBound(index), "value " + value);
+			assertTrue(LatencyHistogram.upperBound(index - 1) < value, "value " + value);
+		}
+	}
+
+	@Test
+	void upperBoundIsWithinAQuarterOfTheValue() {
+		for (int shift = 2; shift < 63; shift++) {
+			for (long value : new long[] { 1L << shift, (1L << shift) + 1, (3L << (shift - 1)) - 1 }) {
+				long upperBound = LatencyHistogram.upperBound(LatencyHistogram.index(value));
+				assertTrue(upperBound - value <= value / 4, "value " + value);
+			}
+		}
+	}
+
+	@Test
+	void largestValueFitsTheLastBucket() {
+		assertEquals(Long.MAX_VALUE, LatencyHistogram.upperBound(LatencyHistogram.index(Long.MAX_VALUE)));
+	}
+
+	@Test
+	void percentileIsTheUpperBoundOfItsBucket() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(-1, histogram.percentileMicros(50));
+		for (int millis = 1; millis <= 100; millis++) {
+			histogram.record(TimeUnit.MILLISECONDS.toNanos(millis));
+		}
+
+		assertEquals(100, histogram.count());
+		long median = histogram.percentileMicros(50);
+		assertEquals(LatencyHistogram.upperBound(LatencyHistogram.index(50000)), median);
+		assertTrue(histogram.percentileMicros(100) >= 100000);
+	}
+}
@@ -0,0 +1,61 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.pingone;
+
+import static org.forgerock.am.marketplace.pingone.PingOneProtectErrorReporter.classify;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.core.JsonParseException;
+
+class PingOneProtectErrorReporterTest {
+
+	@Test
+	void classifiesTimeouts() {
+		assertEquals(ErrorCode.TIMEOUT, classify(new TimeoutException()));
+		assertEquals(ErrorCode.TIMEOUT, classify(new Exception("Failed", new SocketTimeoutException())));
+		assertEquals(ErrorCode.TIMEOUT, classify(new ExecutionException(new TimeoutException())));
+	}
+
+	@Test
+	void classifiesPingOneResponsesByStatus() {
+		assertEquals(ErrorCode.HTTP_4XX, classify(new Exception("Failed",
+				new PingOneApiException("Bad request", 400, null))));
+		assertEquals(ErrorCode.HTTP_4XX, classify(new PingOneApiException("Too many requests", 429, null)));
+		assertEquals(ErrorCode.HTTP_5XX, classify(new PingOneApiException("Unavailable", 503, null)));
+	}
+
+	@Test
+	void classifiesTransportFailuresByTheirCause() {
+		assertEquals(ErrorCode.CONNECTION_ERROR, classify(new Exception("Failed",
+				new PingOneApiException("No response", 502, new ConnectException("Connection refused")))));
+		assertEquals(ErrorCode.TIMEOUT, classify(new PingOneApiException("No response", 502,
+				new SocketTimeoutException("Read timed out"))));
+		assertEquals(ErrorCode.CONNECTION_ERROR, classify(new IOException("Connection reset")));
+	}
+
+	@Test
+	void classifiesUnreadableResponses() {
+		assertEquals(ErrorCode.PARSE_ERROR, classify(new Exception("Failed",
+				new JsonParseException(null, "Unexpected character"))));
+	}
+
+	@Test
+	void classifiesOtherFailuresAsInternal() {
+		assertEquals(ErrorCode.INTERNAL_ERROR, classify(new IllegalStateException("No access token")));
+		assertEquals(ErrorCode.INTERNAL_ERROR, classify(new Exception("Failed", new NullPointerException())));
+	}
+}
@@ -0,0 +1,114 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.pingone;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.iplanet.am.util.SystemProperties;
+
+class PingOneProtectOutboxTest {
+
+	private static final String REALM = "/alpha";
+	private static final String WORKER = "worker";
+
+	@TempDir
+	Path directory;
+
+	private final PingOneProtectOutbox outbox = PingOneProtectOutbox.getInstance();
+
+	@BeforeEach
+	void setUp() {
+		SystemProperties.initializeProperties(PingOneProtectOutbox.ENABLED, "true");
+		SystemProperties.initializeProperties(PingOneProtectOutbox.DIRECTORY, directory.toString());
+	}
+
+	@AfterEach
+	void tearDown() {
+		outbox.shutdown();
+	}
+
+	@Test
+	void recoversPendingUpdatesAfterTornRecord() throws IOException {
+		outbox.start();
+		long first = outbox.append(REALM, WORKER, "risk-1", "SUCCESS");
+		outbox.append(REALM, WORKER, "risk-2", "FAILED");
+		outbox.append(REALM, WORKER, "risk-3", "SUCCESS");
+		outbox.ack(first);
+		outbox.shutdown();
+
+		Path segment = firstSegment();
+		long valid = Files.size(segment);
+		// A record header announcing a 64 byte payload, cut short by a crash.
+		append(segment, ByteBuffer.allocate(Integer.BYTES * 2 + 10).putInt(64).putInt(0).flip());
+
+		outbox.start();
+
+		assertEquals(2, outbox.pending());
+		assertEquals(valid, Files.size(segment));
+	}
+
+	@Test
+	void ignoresRecordWithBadChecksum() throws IOException {
+		outbox.start();
+		outbox.append(REALM, WORKER, "risk-1", "SUCCESS");
+		outbox.shutdown();
+
+		Path segment = firstSegment();
+		long valid = Files.size(segment);
+		append(segment, ByteBuffer.allocate(Integer.BYTES * 2 + 16).putInt(16).putInt(42).flip());
+
+		outbox.start();
+
+		assertEquals(1, outbox.pending());
+		assertEquals(valid, Files.size(segment));
+	}
+
+	@Test
+	void appendsAfterRecoveryWithoutReusingIds() throws IOException {
+		outbox.start();
+		long first = outbox.append(REALM, WORKER, "risk-1", "SUCCESS");
+		outbox.shutdown();
+		append(firstSegment(), ByteBuffer.allocate(Integer.BYTES).putInt(64).flip());
+
+		outbox.start();
+		long second = outbox.append(REALM, WORKER, "risk-2", "SUCCESS");
+		outbox.ack(first);
+
+		assertTrue(second > first);
+		assertEquals(1, outbox.pending());
+	}
+
+	private Path firstSegment() throws IOException {
+		try (var paths = Files.list(directory)) {
+			return paths.filter(path -> path.getFileName().toString().startsWith("outbox-")).sorted().findFirst()
+					.orElseThrow();
+		}
+	}
+
+	private static void append(Path segment, ByteBuffer bytes) throws IOException {
+		try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+			while (bytes.hasRemaining()) {
+				channel.write(bytes);
+			}
+		}
+	}
+}
@@ -0,0 +1,46 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.pingone;
+
+import static org.forgerock.am.marketplace.pingone.PingOneProtectSdkHandler.accepts;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class PingOneProtectSdkHandlerTest {
+
+	@Test
+	void acceptsListedEncodings() {
+		assertTrue(accepts("gzip, deflate, br", "br"));
+		assertTrue(accepts("gzip, deflate, br", "gzip"));
+		assertTrue(accepts("GZIP", "gzip"));
+	}
+
+	@Test
+	void acceptsEncodingsWithNonZeroQuality() {
+		assertTrue(accepts("br;q=1.0, gzip;q=0.5", "gzip"));
+		assertTrue(accepts("gzip; q=0.001", "gzip"));
+	}
+
+	@Test
+	void refusesEncodingsWithZeroQuality() {
+		assertFalse(accepts("br;q=0, gzip", "br"));
+		assertFalse(accepts("gzip;q=0.0", "gzip"));
+		assertFalse(accepts("gzip; q = 0.000", "gzip"));
+	}
+
+	@Test
+	void refusesMissingEncodings() {
+		assertFalse(accepts(null, "gzip"));
+		assertFalse(accepts("", "gzip"));
+		assertFalse(accepts("deflate", "gzip"));
+		assertFalse(accepts("x-gzip", "gzip"));
+	}
+}
@@ -0,0 +1,57 @@
+/*
+ * This code is to be used exclusively in connection with Ping Identity Corporation software or services.
+ * Ping Identity Corporation only offers such software or services to legal entities who have entered into
+ * a binding license agreement with Ping Identity Corporation.
+ *
+ * Copyright 2024 Ping Identity Corporation. All Rights Reserved
+ */
+
+package org.forgerock.am.marketplace.pingone;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class RiskReferenceTest {
+
+	private static final String UUID_ID = "1b7e4f0c-9d2a-4c3e-8f5b-6a7d8e9f0a1b";
+
+	@Test
+	void compactsCanonicalUuid() {
+		String encoded = RiskReference.encode(UUID_ID, "worker");
+
+		assertEquals(22 + 1 + "worker".length(), encoded.length());
+		RiskReference reference = RiskReference.decode(encoded);
+		assertEquals(UUID_ID, reference.getRiskEvalId());
+		assertEquals("worker", reference.getWorkerName());
+	}
+
+	@Test
+	void keepsOtherIdsAsIs() {
+		String id = UUID_ID.toUpperCase();
+
+		String encoded = RiskReference.encode(id, "worker");
+
+		assertTrue(encoded.startsWith("~" + id));
+		assertEquals(id, RiskReference.decode(encoded).getRiskEvalId());
+		assertEquals("evaluation-42", RiskReference.decode(RiskReference.encode("evaluation-42", "w")).getRiskEvalId());
+	}
+
+	@Test
+	void keepsSeparatorInWorkerName() {
+		RiskReference reference = RiskReference.decode(RiskReference.encode(UUID_ID, "PingOne|EU worker"));
+
+		assertEquals(UUID_ID, reference.getRiskEvalId());
+		assertEquals("PingOne|EU worker", reference.getWorkerName());
+	}
+
+	@Test
+	void rejectsInvalidReferences() {
+		assertThrows(IllegalArgumentException.class, () -> RiskReference.decode("no separator"));
+		assertThrows(IllegalArgumentException.class, () -> RiskReference.decode("|worker"));
+		assertThrows(IllegalArgumentException.class, () -> RiskReference.decode("AAAA|worker"));
+		assertThrows(IllegalArgumentException.class, () -> RiskReference.decode("not*base64|worker"));
+	}
+}